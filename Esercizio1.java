@@ -6,12 +6,12 @@
  * 
  * 
  * Il metodo `buildTreeFromPairs` costruisce un albero in O(n) dove n è il
- * numero di figli.
+ * numero di figli, leggendo le coppie con `PairLoader` (vedi sotto).
  *
  * Il metodo `buildTreeFromNestedList` costruisce un albero a partire da una
- * stringa che rappresenta una lista annidata. Il costo di questo metodo è O(m),
- * dove m è il numero di caratteri della stringa. La costruzione dell'albero
- * avviene attraverso una lettura carattere per carattere e l'uso di uno stack.
+ * lista annidata. Il costo di questo metodo è O(m), dove m è il numero di
+ * caratteri del file. Il file è letto a blocchi da `NestedListLoader` (vedi
+ * sotto), carattere per carattere e con una pila di interi.
  *
  * Il metodo `areTreesEqual` dà il via alla ricorsione per verificare
  * l'uguaglianza, che avviene nel metodo `recAreEquals`.
@@ -23,29 +23,111 @@
  * e non ha molti figli per nodo.
  * Nel caso specifico, k = 4, quindi la complessità è nell'ordine di O(n).
  * 
+ * Il metodo `areTreesEqualByFingerprint` confronta gli alberi tramite
+ * un'impronta canonica del sottoalbero, calcolata una sola volta per nodo da
+ * `computeFingerprints` con una visita bottom-up iterativa in O(n) e salvata
+ * nei nodi. L'impronta combina i figli con una somma, che non dipende
+ * dall'ordine, quindi non serve ordinare i figli: il confronto successivo è
+ * O(1) e i confronti ripetuti con lo stesso albero riusano le impronte.
+ * Un'impronta uguale non basta a dire che gli alberi sono uguali, quindi il
+ * main usa `areTreesEqualVerified`, dove le impronte servono solo a scartare
+ * subito gli alberi diversi e l'uguaglianza è confermata scorrendo i figli
+ * già ordinati con una pila esplicita, in O(n) senza allocazioni per nodo;
+ * solo se un nodo ha due figli con lo stesso valore decide `areTreesEqual`.
+ * La classe `ParallelTreeComparator` fa lo stesso confronto esatto di
+ * `areTreesEqual` su un ForkJoinPool, in O(n / p) con p thread dopo il
+ * calcolo delle impronte, e usa una pila esplicita invece della ricorsione;
+ * il lavoro è diviso secondo le dimensioni dei sottoalberi. Con fratelli
+ * dello stesso valore il confronto passa ad `areTreesEqual`.
+ * Il metodo `findFirstDifference` scende solo nei sottoalberi con impronta
+ * diversa e costa O(h * k), dove h è l'altezza dell'albero.
+ * Due alberi diversi hanno la stessa impronta con probabilità circa 2^-64.
+ *
+ * La classe `CompactTree` è una rappresentazione alternativa dell'albero su
+ * array di interi (valori, padri e inizio dei figli), circa 12 byte per nodo
+ * contro gli oltre 100 di un `TreeNode` con il suo `HashSet`. Durante la
+ * costruzione servono in tutto circa 32 byte per nodo: gli 8 dei valori e
+ * dei padri letti (fino a 16 con lo spazio libero delle liste), 12 di array
+ * temporanei e i 12 dell'albero finale, più 8 per figlio del nodo con più
+ * figli; la mappa dei valori dei caricatori è liberata prima.
+ * I nodi sono numerati in ordine BFS con i fratelli ordinati per valore: la
+ * forma è canonica, quindi due alberi sono uguali se e solo se i loro array
+ * sono uguali, e il confronto costa O(n) senza allocazioni. Due fratelli con
+ * lo stesso valore renderebbero l'ordine ambiguo, e `areTreesEqual` sui
+ * TreeNode li fonde nei suoi TreeSet: la costruzione li rifiuta. Con --check
+ * il main verifica che le due rappresentazioni diano lo stesso verdetto, e
+ * che lo diano anche `areTreesEqualVerified` e `ParallelTreeComparator`.
+ * La canonicalizzazione costa O(n + k log k) per ogni nodo con k figli.
+ * I metodi `buildCompactTreeFromPairs` e `buildCompactTreeFromNestedList`
+ * costruiscono direttamente questa rappresentazione, usando una mappa di
+ * interi primitivi al posto di `HashMap<Integer, TreeNode>`.
+ * Le coppie sono lette da `PairLoader`, che scorre il file a blocchi di byte
+ * in O(b), dove b è la dimensione del file, e trova la radice come l'unico
+ * nodo con grado entrante 0. I valori fuori dagli int sono rifiutati con
+ * NumberFormatException. Lo stesso caricatore costruisce anche i TreeNode di
+ * `buildTreeFromPairs`; con --compact il main costruisce gli alberi compatti
+ * e stampa su System.err le coppie al secondo raggiunte.
+ * La lista annidata è letta da `NestedListLoader`, sempre a blocchi di byte,
+ * con una pila di interi: la memoria è O(h + n) invece di O(m). Anche questo
+ * caricatore costruisce sia i TreeNode, dove due fratelli possono avere lo
+ * stesso valore, sia gli alberi compatti, che li rifiutano.
+ * La classe `TreeSnapshot` salva un `CompactTree` in un file binario che
+ * viene poi mappato in memoria: il caricamento costa il tempo di mappatura
+ * invece di O(b), e l'intestazione scarta le istantanee di una versione
+ * diversa o di un file di origine modificato.
+ *
+ * I costruttori e i confronti contano in `Metrics` i nodi costruiti e le
+ * coppie di nodi confrontate, in variabili locali pubblicate alla fine;
+ * lettura, costruzione e confronto emettono eventi JFR.
+ *
  * Il metodo `printTree` stampa ogni nodo dell'albero, a partire dal nodo
  * radice, e ha costo O(n).
- * Utilizza `StringBuilder` per ottimizzare la creazione della stringa da
- * stampare.
+ * Utilizza `TreeWriter`, che visita l'albero con una pila esplicita e scrive
+ * i numeri direttamente in un unico buffer di byte. Oltre al formato
+ * "padre -> figli" sa scrivere anche i due formati di input, coppie e lista
+ * annidata, quindi un albero può passare da un formato all'altro in O(n).
+ * Un albero di un solo nodo non ha coppie da scrivere, e in quel formato
+ * viene rifiutato con IllegalArgumentException.
  */
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.Closeable;
+import java.io.Flushable;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
-import java.util.Stack;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
 
 public class Esercizio1 {
     static class TreeNode implements Comparable<TreeNode> {
         int value;
         Set<TreeNode> children;
 
+        // impronta canonica del sottoalbero, valida solo se sortedChildren != null
+        long fingerprint;
+        int subtreeSize;
+        TreeNode[] sortedChildren;
+        // nel sottoalbero c'è un nodo con due figli dello stesso valore
+        boolean repeatedValues;
+
         TreeNode(int value) {
             this.value = value;
             this.children = new HashSet<>();
@@ -67,116 +149,822 @@ public class Esercizio1 {
         }
     }
 
-    // costruisce il pair tree
-    static TreeNode buildTreeFromPairs(String filename) {
+    // albero compatto in forma canonica: i nodi sono numerati in ordine BFS e i
+    // fratelli sono ordinati per valore, quindi i figli del nodo i sono i nodi
+    // da firstChild(i) a firstChild(i + 1) - 1 e la radice è il nodo 0.
+    // Gli array sono IntBuffer, così l'albero può stare sia nello heap sia in un
+    // file mappato in memoria (vedi TreeSnapshot).
+    static class CompactTree {
+        private final IntBuffer values;
+        private final IntBuffer parents;
+        private final IntBuffer firstChild; // lunghezza size() + 1
 
-        Map<Integer, TreeNode> nodeMap = new HashMap<>();
-        Set<Integer> parentSet = new HashSet<>();
-        Set<Integer> childSet = new HashSet<>();
+        private CompactTree(int[] values, int[] parents, int[] firstChild) {
+            this(IntBuffer.wrap(values), IntBuffer.wrap(parents), IntBuffer.wrap(firstChild));
+        }
 
-        BufferedReader br;
-        try {
-            br = new BufferedReader(new FileReader(filename));
-            String line;
-            // le righe sono n - 1, perchè la root non ha una riga in cui sta a
-            // destra della virgola
-            while ((line = br.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty())
-                    continue;
-                String[] parts = line.split(",");
-                int parentValue = Integer.parseInt(parts[0].trim());
-                int childValue = Integer.parseInt(parts[1].trim());
+        CompactTree(IntBuffer values, IntBuffer parents, IntBuffer firstChild) {
+            if (parents.limit() != values.limit() || firstChild.limit() != values.limit() + 1) {
+                throw new IllegalArgumentException("Array dell'albero di lunghezza non coerente.");
+            }
+            this.values = values;
+            this.parents = parents;
+            this.firstChild = firstChild;
+        }
+
+        int size() {
+            return values.limit();
+        }
 
-                // Se il nodo non esiste nella mappa, crealo
-                TreeNode parentNode = nodeMap.computeIfAbsent(parentValue, k -> new TreeNode(k)); // O(1)
-                TreeNode childNode = nodeMap.computeIfAbsent(childValue, k -> new TreeNode(k)); // O(1)
+        int value(int node) {
+            return values.get(node);
+        }
+
+        // -1 per la radice
+        int parent(int node) {
+            return parents.get(node);
+        }
 
-                parentNode.children.add(childNode);
-                parentSet.add(parentValue);
-                childSet.add(childValue);
+        int firstChild(int node) {
+            return firstChild.get(node);
+        }
+
+        int childCount(int node) {
+            return firstChild.get(node + 1) - firstChild.get(node);
+        }
+
+        // costruisce l'albero a partire dal padre di ogni nodo, dove i nodi sono
+        // numerati da 0 a n - 1 in un ordine qualsiasi e la radice ha padre -1
+        static CompactTree fromParents(int[] nodeValues, int[] parentOf, int n) {
+            Metrics.BuildEvent event = Metrics.beginBuild();
+
+            // conta i figli di ogni nodo e trova la radice, O(n)
+            int[] start = new int[n + 1];
+            int root = -1;
+            for (int i = 0; i < n; i++) {
+                if (parentOf[i] == -1) {
+                    if (root != -1) {
+                        throw new IllegalStateException("L'albero dovrebbe avere esattamente una radice.");
+                    }
+                    root = i;
+                } else {
+                    start[parentOf[i] + 1]++;
+                }
             }
-        } catch (FileNotFoundException e) {
-            // problema con il path
-            e.printStackTrace();
-        } catch (Exception e) {
-            e.printStackTrace();
+            if (root == -1) {
+                throw new IllegalStateException("L'albero dovrebbe avere esattamente una radice.");
+            }
+
+            int maxDegree = 0;
+            for (int i = 0; i < n; i++) {
+                maxDegree = Math.max(maxDegree, start[i + 1]);
+                start[i + 1] += start[i];
+            }
+
+            // figli di ogni nodo, raggruppati per padre
+            int[] adjacency = new int[n];
+            int[] fill = Arrays.copyOf(start, n);
+            for (int i = 0; i < n; i++) {
+                if (parentOf[i] != -1) {
+                    adjacency[fill[parentOf[i]]++] = i;
+                }
+            }
+
+            // visita BFS: order[k] è il nodo originale che diventa il nodo k;
+            // riusa l'array di fill, che non serve più
+            int[] order = fill;
+            fill = null;
+            int[] values = new int[n];
+            int[] parents = new int[n];
+            int[] firstChild = new int[n + 1];
+            long[] keys = new long[maxDegree];
+
+            order[0] = root;
+            parents[0] = -1;
+            int tail = 1;
+            for (int k = 0; k < tail; k++) {
+                int node = order[k];
+                values[k] = nodeValues[node];
+                firstChild[k] = tail;
+
+                // ordina i figli per valore; due fratelli con lo stesso valore
+                // renderebbero l'ordine, e quindi la forma canonica, dipendente
+                // dall'input, e vengono rifiutati
+                int degree = start[node + 1] - start[node];
+                for (int j = 0; j < degree; j++) {
+                    int child = adjacency[start[node] + j];
+                    keys[j] = ((long) nodeValues[child] << 32) | child;
+                }
+                Arrays.sort(keys, 0, degree); // O(k log k)
+                for (int j = 1; j < degree; j++) {
+                    if ((keys[j] >> 32) == (keys[j - 1] >> 32)) {
+                        throw new IllegalStateException("Il nodo " + nodeValues[node]
+                                + " ha due figli con valore " + (keys[j] >> 32) + ".");
+                    }
+                }
+
+                for (int j = 0; j < degree; j++) {
+                    parents[tail] = k;
+                    order[tail++] = (int) keys[j];
+                }
+            }
+            firstChild[n] = tail;
+
+            if (tail != n) {
+                throw new IllegalStateException("Ci sono nodi non raggiungibili dalla radice.");
+            }
+
+            Metrics.Counter.TREE_NODES_BUILT.add(n);
+            Metrics.end(event, "compact-tree", n);
+            return new CompactTree(values, parents, firstChild);
         }
 
-        return nodeMap.get(getRoot(parentSet, childSet)); // O(1)
+        // converte un albero di TreeNode, O(n)
+        static CompactTree of(TreeNode root) {
+            IntList values = new IntList();
+            IntList parents = new IntList();
+            List<TreeNode> nodes = new ArrayList<>();
+
+            nodes.add(root);
+            values.add(root.value);
+            parents.add(-1);
+            for (int i = 0; i < nodes.size(); i++) {
+                for (TreeNode child : nodes.get(i).children) {
+                    nodes.add(child);
+                    values.add(child.value);
+                    parents.add(i);
+                }
+            }
+
+            return fromParents(values.data, parents.data, values.size);
+        }
     }
 
-    private static int getRoot(Set<Integer> parentSet, Set<Integer> childSet) {
-        parentSet.removeAll(childSet); // O(n)
-        if (parentSet.size() != 1) {
+    // costruisce un albero di TreeNode a partire dal padre di ogni nodo, come
+    // CompactTree.fromParents ma senza ordinare i figli e accettando fratelli
+    // con lo stesso valore, O(n)
+    static TreeNode treeFromParents(int[] nodeValues, int[] parentOf, int n) {
+        Metrics.BuildEvent event = Metrics.beginBuild();
+        TreeNode[] nodes = new TreeNode[n];
+        for (int i = 0; i < n; i++) {
+            nodes[i] = new TreeNode(nodeValues[i]);
+        }
+
+        TreeNode root = null;
+        for (int i = 0; i < n; i++) {
+            if (parentOf[i] != -1) {
+                nodes[parentOf[i]].children.add(nodes[i]);
+            } else if (root == null) {
+                root = nodes[i];
+            } else {
+                throw new IllegalStateException("L'albero dovrebbe avere esattamente una radice.");
+            }
+        }
+        if (root == null) {
             throw new IllegalStateException("L'albero dovrebbe avere esattamente una radice.");
         }
 
-        return parentSet.iterator().next();
+        // ogni nodo ha un solo padre: i nodi non raggiungibili dalla radice
+        // sono in un ciclo
+        int reached = 0;
+        ArrayDeque<TreeNode> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            reached++;
+            for (TreeNode child : stack.pop().children) {
+                stack.push(child);
+            }
+        }
+        if (reached != n) {
+            throw new IllegalStateException("Ci sono nodi non raggiungibili dalla radice.");
+        }
 
+        Metrics.Counter.TREE_NODES_BUILT.add(n);
+        Metrics.end(event, "tree", n);
+        return root;
     }
 
-    // costruisce il nested tree
+    // lista di interi primitivi che cresce come un ArrayList
+    static class IntList {
+        // lunghezza massima di un array nelle JVM più comuni
+        static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+        int[] data;
+        int size;
+
+        IntList() {
+            this(16);
+        }
+
+        IntList(int capacity) {
+            this.data = new int[Math.max(capacity, 1)];
+        }
+
+        void add(int value) {
+            if (size == data.length) {
+                if (size == MAX_CAPACITY) {
+                    throw new IllegalStateException("Troppi valori: al massimo " + MAX_CAPACITY + ".");
+                }
+                data = Arrays.copyOf(data, (int) Math.min(2L * size, MAX_CAPACITY));
+            }
+            data[size++] = value;
+        }
+
+        int get(int i) {
+            return data[i];
+        }
+
+        void set(int i, int value) {
+            data[i] = value;
+        }
+    }
+
+    // mappa da valore del nodo a indice, con indirizzamento aperto e senza boxing.
+    // La capacità è una potenza di 2 tenuta almeno doppia delle chiavi, fino a
+    // 2^30 celle; arrivata lì la mappa si riempie fino a 3/4 e poi rifiuta
+    // nuove chiavi invece di far traboccare la capacità.
+    static class IntIndexMap {
+        static final int MAX_CAPACITY = 1 << 30;
+
+        private int[] keys;
+        private int[] indexes; // indice + 1, 0 indica una cella vuota
+        private int size;
+
+        IntIndexMap(int expected) {
+            int capacity = (int) Math.min(Long.highestOneBit(Math.max(2L * expected - 1, 16)) << 1, MAX_CAPACITY);
+            this.keys = new int[capacity];
+            this.indexes = new int[capacity];
+        }
+
+        // restituisce l'indice associato a key, -1 se assente
+        int get(int key) {
+            int mask = keys.length - 1;
+            for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+                if (indexes[slot] == 0) {
+                    return -1;
+                }
+                if (keys[slot] == key) {
+                    return indexes[slot] - 1;
+                }
+            }
+        }
+
+        // restituisce l'indice associato a key, associandogli index se assente
+        int putIfAbsent(int key, int index) {
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (indexes[slot] != 0) {
+                if (keys[slot] == key) {
+                    return indexes[slot] - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            if (keys.length == MAX_CAPACITY && size >= MAX_CAPACITY / 4 * 3) {
+                throw new IllegalStateException("Troppi nodi distinti: al massimo " + MAX_CAPACITY / 4 * 3 + ".");
+            }
+            keys[slot] = key;
+            indexes[slot] = index + 1;
+            if (++size * 2 > keys.length && keys.length < MAX_CAPACITY) {
+                grow();
+            }
+            return index;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            int[] oldIndexes = indexes;
+            keys = new int[oldKeys.length * 2];
+            indexes = new int[oldKeys.length * 2];
+
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldIndexes[i] != 0) {
+                    int slot = hash(oldKeys[i]) & mask;
+                    while (indexes[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    indexes[slot] = oldIndexes[i];
+                }
+            }
+        }
+
+        private static int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    // costruisce il pair tree, leggendo le coppie con PairLoader
+    static TreeNode buildTreeFromPairs(String filename) {
+        try {
+            return new PairLoader().loadTree(filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // costruisce il nested tree, leggendo la lista con NestedListLoader
     static TreeNode buildTreeFromNestedList(String filename) {
+        try {
+            return new NestedListLoader().loadTree(filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
+    // costruisce il pair tree in forma compatta
+    static CompactTree buildCompactTreeFromPairs(String filename) {
         try {
-            BufferedReader br = new BufferedReader(new FileReader(filename));
-            String line = br.readLine().trim();
-            br.close();
+            return new PairLoader().load(filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-            Stack<TreeNode> stack = new Stack<>();
-            int i = 0;
-            TreeNode root = null;
+    // caricatore a flusso delle coppie "padre, figlio": legge il file a blocchi
+    // di byte e interpreta i numeri a mano, senza creare stringhe né oggetti
+    // per riga. La radice è l'unico nodo con grado entrante 0. Produce sia
+    // l'albero compatto sia quello di TreeNode usato da buildTreeFromPairs.
+    static class PairLoader {
+        static final int CHUNK_SIZE = 1 << 20;
 
-            while (i < line.length()) { // O(m) dove m è il numero di caratteri della stringa
+        private long pairs;
+        private long bytes;
+        private long begin;
+        private long elapsedNanos;
 
-                switch (line.charAt(i)) {
-                    case '[':
+        // albero in costruzione
+        private IntIndexMap ids;
+        private IntList values;
+        private IntList parents; // -1 finché il nodo non ha un padre
 
-                        StringBuilder sb = new StringBuilder();
+        // stato del parser, conservato tra un blocco e l'altro
+        private int field; // numeri già letti sulla riga corrente
+        private int parentValue;
+        private long number; // valore assoluto, al più 2^31 per Integer.MIN_VALUE
+        private boolean inNumber;
+        private boolean negative;
+        private long lineNumber;
 
-                        while (i + 1 < line.length() && Character.isDigit(line.charAt(i + 1))) {
-                            i++;
-                            sb.append(line.charAt(i));
-                        }
+        CompactTree load(String filename) throws IOException {
+            Metrics.ParseEvent event = parse(filename);
+            CompactTree tree = CompactTree.fromParents(values.data, parents.data, values.size);
+            finish(event, filename);
+            return tree;
+        }
+
+        // come load, ma costruisce un albero di TreeNode
+        TreeNode loadTree(String filename) throws IOException {
+            Metrics.ParseEvent event = parse(filename);
+            TreeNode root = treeFromParents(values.data, parents.data, values.size);
+            finish(event, filename);
+            return root;
+        }
 
-                        int num = Integer.parseInt(sb.toString());
-                        TreeNode newNode = new TreeNode(num);
+        // legge il file e riempie values e parents
+        private Metrics.ParseEvent parse(String filename) throws IOException {
+            begin = System.nanoTime();
+            Metrics.ParseEvent event = Metrics.beginParse();
 
-                        // Se lo stack non è vuoto, aggiungi il nuovo nodo come figlio del nodo in cima
-                        // allo stack
-                        if (!stack.isEmpty()) { // O(1)
-                            stack.peek().children.add(newNode); // O(1)
-                        }
+            ids = new IntIndexMap(1024);
+            values = new IntList();
+            parents = new IntList();
+            field = 0;
+            number = 0;
+            inNumber = false;
+            negative = false;
+            lineNumber = 1;
+            pairs = 0;
+            bytes = 0;
+
+            try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+                int read;
+                while ((read = channel.read(buffer)) > 0) {
+                    consume(buffer.array(), read);
+                    bytes += read;
+                    buffer.clear();
+                }
+            }
+
+            // a fine file si chiude l'ultima riga
+            consume(new byte[] { '\n' }, 1);
+
+            // la mappa non serve più, si libera prima di costruire l'albero
+            ids = null;
+            return event;
+        }
+
+        private void finish(Metrics.ParseEvent event, String filename) {
+            values = null;
+            parents = null;
+            this.elapsedNanos = System.nanoTime() - begin;
+            Metrics.end(event, filename, bytes, pairs);
+        }
+
+        // interpreta un blocco di byte, O(length)
+        private void consume(byte[] chunk, int length) {
+            long number = this.number;
+            boolean inNumber = this.inNumber;
+
+            for (int i = 0; i < length; i++) {
+                byte c = chunk[i];
+
+                if (c >= '0' && c <= '9') {
+                    number = number * 10 + (c - '0');
+                    if (number > 1L << 31) {
+                        throw new NumberFormatException("Riga " + lineNumber + ": numero fuori dagli interi");
+                    }
+                    inNumber = true;
+                    continue;
+                }
+
+                // un separatore chiude il numero in corso
+                if (inNumber) {
+                    endNumber(number);
+                    number = 0;
+                    inNumber = false;
+                } else if (negative || c == '-') {
+                    if (c == '-' && !negative) {
+                        negative = true;
+                        continue;
+                    }
+                    throw new NumberFormatException("Riga " + lineNumber + ": '-' senza numero");
+                }
+
+                if (c == '\n') {
+                    if (field == 1) {
+                        throw new NumberFormatException("Riga " + lineNumber + ": manca il figlio");
+                    }
+                    field = 0;
+                    lineNumber++;
+                } else if (c != ',' && c != ' ' && c != '\t' && c != '\r') {
+                    throw new NumberFormatException("Riga " + lineNumber + ": carattere non valido '"
+                            + (char) c + "'");
+                }
+            }
+
+            this.number = number;
+            this.inNumber = inNumber;
+        }
+
+        // registra un numero letto: il primo della riga è il padre, il secondo il figlio
+        private void endNumber(long number) {
+            if (!negative && number > Integer.MAX_VALUE) {
+                throw new NumberFormatException("Riga " + lineNumber + ": numero fuori dagli interi");
+            }
+            int value = (int) (negative ? -number : number);
+            negative = false;
+
+            if (field == 0) {
+                parentValue = value;
+                field = 1;
+                return;
+            }
+            if (field == 2) {
+                throw new NumberFormatException("Riga " + lineNumber + ": troppi valori");
+            }
+
+            int parent = nodeIndex(ids, values, parents, parentValue);
+            int child = nodeIndex(ids, values, parents, value);
+            // una coppia ripetuta non cambia l'albero
+            if (parents.get(child) != -1 && parents.get(child) != parent) {
+                throw new IllegalStateException("Il nodo " + value + " ha più di un padre.");
+            }
+            parents.set(child, parent);
+            field = 2;
+            pairs++;
+        }
+
+        // coppie lette dall'ultimo caricamento
+        long pairs() {
+            return pairs;
+        }
+
+        long bytes() {
+            return bytes;
+        }
+
+        long elapsedNanos() {
+            return elapsedNanos;
+        }
 
-                        // Se la root non è stato ancora impostata, impostala al primo nodo trovato
-                        if (root == null) {
-                            root = newNode;
+        // throughput dell'ultimo caricamento, costruzione dell'albero compresa
+        double pairsPerSecond() {
+            return elapsedNanos == 0 ? 0 : pairs * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("PairLoader [pairs=%d, bytes=%d, ms=%.1f, pairs/s=%.0f]",
+                    pairs, bytes, elapsedNanos / 1e6, pairsPerSecond());
+        }
+    }
+
+    // restituisce l'indice del nodo con il valore dato, creandolo se non esiste
+    private static int nodeIndex(IntIndexMap ids, IntList values, IntList parents, int value) {
+        int index = ids.putIfAbsent(value, values.size);
+        if (index == values.size) {
+            values.add(value);
+            parents.add(-1);
+        }
+        return index;
+    }
+
+    // costruisce il nested tree in forma compatta
+    static CompactTree buildCompactTreeFromNestedList(String filename) {
+        try {
+            return new NestedListLoader().load(filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // caricatore a flusso della lista annidata "[n[...]...]": legge il file a
+    // blocchi di byte, quindi la memoria usata è proporzionale alla profondità
+    // dell'albero più il risultato, non alla lunghezza dell'input. Produce
+    // sia l'albero compatto sia quello di TreeNode usato da
+    // buildTreeFromNestedList.
+    static class NestedListLoader {
+        static final int CHUNK_SIZE = 1 << 20;
+
+        // albero in costruzione
+        private IntList values;
+        private IntList parents;
+        private IntList stack; // indici dei nodi aperti
+
+        // stato del parser, conservato tra un blocco e l'altro
+        private boolean open; // dopo '[' si aspetta il valore del nodo
+        private boolean negative;
+        private boolean inNumber;
+        private long number; // valore assoluto, al più 2^31 per Integer.MIN_VALUE
+        private long position;
+
+        // restituisce null se il file non contiene nodi
+        CompactTree load(String filename) throws IOException {
+            Metrics.ParseEvent event = parse(filename);
+            CompactTree tree = values.size == 0 ? null
+                    : CompactTree.fromParents(values.data, parents.data, values.size);
+            finish(event, filename);
+            return tree;
+        }
+
+        // come load, ma costruisce un albero di TreeNode, dove due fratelli
+        // possono avere lo stesso valore
+        TreeNode loadTree(String filename) throws IOException {
+            Metrics.ParseEvent event = parse(filename);
+            TreeNode root = values.size == 0 ? null : treeFromParents(values.data, parents.data, values.size);
+            finish(event, filename);
+            return root;
+        }
+
+        // legge il file e riempie values e parents
+        private Metrics.ParseEvent parse(String filename) throws IOException {
+            Metrics.ParseEvent event = Metrics.beginParse();
+            values = new IntList();
+            parents = new IntList();
+            stack = new IntList();
+            open = false;
+            negative = false;
+            inNumber = false;
+            number = 0;
+            position = 0;
+
+            try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+                int read;
+                while ((read = channel.read(buffer)) > 0) {
+                    consume(buffer.array(), read);
+                    buffer.clear();
+                }
+            }
+
+            if (open || stack.size != 0) {
+                throw new IllegalStateException("Lista annidata non chiusa.");
+            }
+            stack = null;
+            return event;
+        }
+
+        private void finish(Metrics.ParseEvent event, String filename) {
+            Metrics.end(event, filename, position, values.size);
+            values = null;
+            parents = null;
+        }
+
+        // interpreta un blocco di byte, O(length)
+        private void consume(byte[] chunk, int length) {
+            for (int i = 0; i < length; i++, position++) {
+                byte c = chunk[i];
+
+                if (open) {
+                    if (c >= '0' && c <= '9') {
+                        number = number * 10 + (c - '0');
+                        if (number > 1L << 31 || (!negative && number > Integer.MAX_VALUE)) {
+                            throw new NumberFormatException("Posizione " + position + ": numero fuori dagli interi");
                         }
+                        inNumber = true;
+                        continue;
+                    }
+                    if (inNumber) {
+                        openNode((int) (negative ? -number : number));
+                    } else if (c == '-' && !negative) {
+                        negative = true;
+                        continue;
+                    } else if (!negative && (c == ' ' || c == '\t' || c == '\r' || c == '\n')) {
+                        continue;
+                    } else {
+                        throw new NumberFormatException("Posizione " + position + ": manca il valore del nodo");
+                    }
+                }
 
-                        // Aggiungi il nuovo nodo allo stack
-                        stack.push(newNode); // O(1)
+                switch (c) {
+                    case '[':
+                        open = true;
                         break;
 
                     case ']':
-                        // Rimuovi il nodo in cima allo stack
-                        stack.pop(); // O(1)
+                        if (stack.size == 0) {
+                            throw new IllegalStateException("Posizione " + position + ": ']' senza '['");
+                        }
+                        stack.size--;
                         break;
 
                     default:
                         break;
                 }
+            }
+        }
+
+        // aggiunge un nodo come figlio del nodo in cima alla pila
+        private void openNode(int value) {
+            parents.add(stack.size == 0 ? -1 : stack.get(stack.size - 1));
+            stack.add(values.size);
+            values.add(value);
+
+            open = false;
+            negative = false;
+            inNumber = false;
+            number = 0;
+        }
+    }
+
+    // istantanea binaria di un CompactTree. Il file contiene un'intestazione
+    // con numero magico, versione, dimensione e data di modifica del file di
+    // origine e CRC32 dei dati, seguita da valori, padri e firstChild come
+    // interi little endian. Al caricamento gli array vengono mappati in memoria
+    // e usati direttamente, senza ricostruire l'albero.
+    static class TreeSnapshot {
+        static final int MAGIC = 0x45314354; // "E1CT"
+        static final int VERSION = 1;
+        static final int HEADER_SIZE = 40;
+        static final String EXTENSION = ".bin";
 
-                i++;
+        // scrive l'istantanea dell'albero costruito a partire da source
+        static void write(CompactTree tree, String snapshot, String source) throws IOException {
+            Path sourcePath = Paths.get(source);
+            int n = tree.size();
+            CRC32 crc = new CRC32();
 
+            try (FileChannel channel = FileChannel.open(Paths.get(snapshot), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+                channel.position(HEADER_SIZE);
+                writeInts(channel, buffer, crc, tree.values, n);
+                writeInts(channel, buffer, crc, tree.parents, n);
+                writeInts(channel, buffer, crc, tree.firstChild, n + 1);
+
+                // l'intestazione si scrive per ultima, quando il CRC è noto
+                buffer.clear();
+                buffer.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(0);
+                buffer.putLong(Files.size(sourcePath));
+                buffer.putLong(Files.getLastModifiedTime(sourcePath).toMillis());
+                buffer.putLong(crc.getValue());
+                buffer.flip();
+                channel.write(buffer, 0);
             }
-            return root;
+        }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+        private static void writeInts(FileChannel channel, ByteBuffer buffer, CRC32 crc, IntBuffer ints, int count)
+                throws IOException {
+            buffer.clear();
+            for (int i = 0; i < count; i++) {
+                if (!buffer.hasRemaining()) {
+                    flush(channel, buffer, crc);
+                }
+                buffer.putInt(ints.get(i));
+            }
+            flush(channel, buffer, crc);
+        }
+
+        private static void flush(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+            buffer.flip();
+            crc.update(buffer);
+            buffer.rewind();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        // mappa l'istantanea in memoria; restituisce null se manca, se è di
+        // un'altra versione o se il file di origine è cambiato dopo la scrittura
+        static CompactTree load(String snapshot, String source) throws IOException {
+            Path snapshotPath = Paths.get(snapshot);
+            Path sourcePath = Paths.get(source);
+            if (!Files.exists(snapshotPath)) {
+                return null;
+            }
+
+            try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                channel.read(header, 0);
+                header.flip();
+                if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                    return null;
+                }
+
+                Metrics.ParseEvent event = Metrics.beginParse();
+                int n = header.getInt();
+                header.getInt();
+                long sourceSize = header.getLong();
+                long sourceModified = header.getLong();
+
+                if (Files.exists(sourcePath) && (sourceSize != Files.size(sourcePath)
+                        || sourceModified != Files.getLastModifiedTime(sourcePath).toMillis())) {
+                    return null;
+                }
+                if (channel.size() != HEADER_SIZE + 4L * (3L * n + 1)) {
+                    return null;
+                }
+
+                // ogni array ha la sua mappatura, che è limitata a 2 GB
+                long offset = HEADER_SIZE;
+                IntBuffer values = map(channel, offset, n);
+                offset += 4L * n;
+                IntBuffer parents = map(channel, offset, n);
+                offset += 4L * n;
+                IntBuffer firstChild = map(channel, offset, n + 1);
+
+                // la mappatura resta valida anche dopo la chiusura del canale
+                Metrics.end(event, snapshot, channel.size(), n);
+                return new CompactTree(values, parents, firstChild);
+            }
+        }
+
+        private static IntBuffer map(FileChannel channel, long offset, int count) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, 4L * count)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        }
+
+        // ricalcola il CRC32 dei dati e lo confronta con quello
+        // dell'intestazione, O(n)
+        static boolean verify(String snapshot) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(snapshot), StandardOpenOption.READ)) {
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                    return false;
+                }
+
+                CRC32 crc = new CRC32();
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+                channel.position(HEADER_SIZE);
+                while (channel.read(buffer) > 0) {
+                    buffer.flip();
+                    crc.update(buffer);
+                    buffer.clear();
+                }
+                return crc.getValue() == header.getLong(32);
+            }
         }
 
-        return null;
+        // usa l'istantanea di source se è valida, altrimenti legge source con
+        // il caricatore adatto e scrive una nuova istantanea
+        static CompactTree loadOrBuild(String source, boolean nestedList) throws IOException {
+            String snapshot = source + EXTENSION;
+            CompactTree tree = load(snapshot, source);
+            if (tree != null) {
+                return tree;
+            }
+
+            tree = nestedList ? new NestedListLoader().load(source) : new PairLoader().load(source);
+            if (tree != null) {
+                write(tree, snapshot, source);
+            }
+            return tree;
+        }
     }
 
     // lancia la ricorsione
@@ -192,12 +980,20 @@ public class Esercizio1 {
             return false;
         }
 
-        return recAreEquals(root1, root2);
+        Metrics.QueryEvent event = Metrics.beginQuery();
+        long[] compared = new long[1];
+        boolean equal = recAreEquals(root1, root2, compared);
+
+        Metrics.Counter.TREE_COMPARISONS.add(compared[0]);
+        Metrics.end(event, "areTreesEqual", compared[0]);
+        return equal;
     }
 
-    // metodo ricorsivo eseguito n volte
-    private static boolean recAreEquals(TreeNode root1, TreeNode root2) {
+    // metodo ricorsivo eseguito n volte; compared[0] conta le coppie di nodi
+    // confrontate
+    private static boolean recAreEquals(TreeNode root1, TreeNode root2, long[] compared) {
         
+        compared[0]++;
         if (root1.value != root2.value) {
             return false;
         }
@@ -220,7 +1016,7 @@ public class Esercizio1 {
             TreeNode child1 = iter1.next(); // O(log k) nel caso pessimo, O(1) nel caso medio
             TreeNode child2 = iter2.next(); // O(log k) nel caso pessimo, O(1) nel caso medio
 
-            if (!recAreEquals(child1, child2)) {
+            if (!recAreEquals(child1, child2, compared)) {
                 return false;
             }
         }
@@ -228,7 +1024,632 @@ public class Esercizio1 {
         return true;
     }
 
-    // stampa un albero ricorsivamente
+    // differenza tra due alberi: i due nodi in posizione corrispondente i cui
+    // sottoalberi differiscono già a livello dei figli diretti
+    static class Mismatch {
+        final TreeNode node1;
+        final TreeNode node2;
+
+        Mismatch(TreeNode node1, TreeNode node2) {
+            this.node1 = node1;
+            this.node2 = node2;
+        }
+
+        @Override
+        public String toString() {
+            return "Mismatch [node1=" + node1 + ", node2=" + node2 + "]";
+        }
+    }
+
+    // confronto parallelo su un ForkJoinPool: ogni task scorre le coppie di
+    // nodi con una pila esplicita, quindi la profondità non è un limite, e
+    // quando ha molto lavoro in attesa ne cede metà a un nuovo task, misurata
+    // con le dimensioni dei sottoalberi calcolate da computeFingerprints: le
+    // coppie cedute sono le più vecchie, vicine alla radice e con i
+    // sottoalberi più grandi. Alla prima differenza tutti i task si fermano.
+    // Il risultato è sempre quello di areTreesEqual: se un nodo ha due figli
+    // con lo stesso valore i TreeSet di recAreEquals li fondono, e il
+    // confronto lo fa areTreesEqual stesso.
+    static class ParallelTreeComparator {
+        // lavoro minimo, in nodi, che un task cede a un altro
+        static final int SPLIT_THRESHOLD = 256;
+
+        private final ForkJoinPool pool;
+
+        ParallelTreeComparator() {
+            this(ForkJoinPool.commonPool());
+        }
+
+        ParallelTreeComparator(ForkJoinPool pool) {
+            this.pool = pool;
+        }
+
+        boolean areTreesEqual(TreeNode root1, TreeNode root2) {
+            if (root1 == null || root2 == null) {
+                return root1 == root2;
+            }
+
+            // figli ordinati e dimensioni dei sottoalberi, calcolati una volta
+            computeFingerprints(root1);
+            computeFingerprints(root2);
+            if (root1.repeatedValues || root2.repeatedValues) {
+                return Esercizio1.areTreesEqual(root1, root2);
+            }
+
+            Metrics.QueryEvent event = Metrics.beginQuery();
+            AtomicBoolean different = new AtomicBoolean();
+            CompareTask task = new CompareTask(different);
+            task.push(root1, root2);
+            pool.invoke(task);
+
+            Metrics.Counter.TREE_COMPARISONS.add(task.compared);
+            Metrics.end(event, "parallel-compare", task.compared);
+            return !different.get();
+        }
+
+        private static class CompareTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final AtomicBoolean different;
+            // coppie da confrontare, il primo nodo di ogni coppia è in cima
+            private final ArrayDeque<TreeNode> pending = new ArrayDeque<>();
+            // nodi dei sottoalberi delle coppie in pending
+            private long work;
+            // coppie confrontate da questo task e da quelli che ha ceduto
+            long compared;
+
+            CompareTask(AtomicBoolean different) {
+                this.different = different;
+            }
+
+            void push(TreeNode node1, TreeNode node2) {
+                pending.push(node2);
+                pending.push(node1);
+                work += node1.subtreeSize;
+            }
+
+            @Override
+            protected void compute() {
+                List<CompareTask> forked = new ArrayList<>();
+
+                while (!pending.isEmpty() && !different.get()) {
+
+                    // cede le coppie più vecchie finché il lavoro ceduto non
+                    // arriva a metà di quello in attesa, lasciandone almeno
+                    // una, se nessun task è in attesa di essere rubato
+                    if (work >= 2 * SPLIT_THRESHOLD && pending.size() > 2 && getSurplusQueuedTaskCount() <= 0) {
+                        CompareTask task = new CompareTask(different);
+                        long half = work / 2;
+                        while (task.work < half && pending.size() > 2) {
+                            TreeNode node2 = pending.pollLast();
+                            TreeNode node1 = pending.pollLast();
+                            work -= node1.subtreeSize;
+                            task.push(node1, node2);
+                        }
+                        forked.add(task);
+                        task.fork();
+                    }
+
+                    TreeNode node1 = pending.pop();
+                    TreeNode node2 = pending.pop();
+                    work -= node1.subtreeSize;
+                    compared++;
+
+                    TreeNode[] children1 = node1.sortedChildren;
+                    TreeNode[] children2 = node2.sortedChildren;
+                    if (node1.value != node2.value || children1.length != children2.length) {
+                        different.set(true);
+                        break;
+                    }
+
+                    for (int i = children1.length - 1; i >= 0; i--) {
+                        push(children1[i], children2[i]);
+                    }
+                }
+
+                for (CompareTask task : forked) {
+                    task.join();
+                    compared += task.compared;
+                }
+            }
+        }
+    }
+
+    // calcola le impronte di tutti i sottoalberi non ancora calcolati, O(n)
+    static void computeFingerprints(TreeNode root) {
+        if (root == null || root.sortedChildren != null) {
+            return;
+        }
+
+        Metrics.BuildEvent event = Metrics.beginBuild();
+
+        // visita in preordine, poi si elaborano i nodi al contrario in modo che
+        // i figli vengano calcolati sempre prima dei padri
+        List<TreeNode> order = new ArrayList<>();
+        ArrayDeque<TreeNode> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            TreeNode node = stack.pop();
+            order.add(node);
+            for (TreeNode child : node.children) {
+                // i sottoalberi già calcolati vengono riusati
+                if (child.sortedChildren == null) {
+                    stack.push(child);
+                }
+            }
+        }
+
+        for (int i = order.size() - 1; i >= 0; i--) {
+            TreeNode node = order.get(i);
+            TreeNode[] sorted = node.children.toArray(new TreeNode[0]);
+            Arrays.sort(sorted); // O(k log k), una sola volta per nodo
+
+            long sum = 0;
+            int size = 1;
+            boolean repeated = false;
+            for (int j = 0; j < sorted.length; j++) {
+                TreeNode child = sorted[j];
+                sum += mix(child.fingerprint);
+                size += child.subtreeSize;
+                repeated |= child.repeatedValues || (j > 0 && sorted[j - 1].value == child.value);
+            }
+
+            node.fingerprint = mix(node.value * 0x9E3779B97F4A7C15L + sum);
+            node.subtreeSize = size;
+            node.repeatedValues = repeated;
+            node.sortedChildren = sorted;
+        }
+
+        Metrics.end(event, "fingerprints", order.size());
+    }
+
+    // finalizzatore di splitmix64, distribuisce i bit dell'impronta
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // confronta due alberi tramite le impronte, O(n) solo la prima volta
+    public static boolean areTreesEqualByFingerprint(TreeNode root1, TreeNode root2) {
+
+        if (root1 == null || root2 == null) {
+            return root1 == root2;
+        }
+
+        computeFingerprints(root1);
+        computeFingerprints(root2);
+
+        // con le impronte il confronto è una sola coppia di nodi
+        Metrics.Counter.TREE_COMPARISONS.increment();
+        return root1.value == root2.value
+                && root1.subtreeSize == root2.subtreeSize
+                && root1.fingerprint == root2.fingerprint;
+    }
+
+    // confronto esatto, con lo stesso risultato di areTreesEqual, che usa le
+    // impronte per scartare subito gli alberi diversi. Se nessun nodo ha due
+    // figli con lo stesso valore, recAreEquals confronta proprio le forme
+    // canoniche da cui sono calcolate le impronte: impronte diverse danno
+    // alberi diversi, e con impronte uguali l'uguaglianza è confermata
+    // scorrendo i sortedChildren già calcolati, in O(n) e senza collezioni
+    // per nodo. Una collisione delle impronte non basta quindi mai a dire che
+    // gli alberi sono uguali. Con fratelli dello stesso valore i TreeSet di
+    // recAreEquals li fondono e le impronte non dicono nulla: decide
+    // areTreesEqual.
+    public static boolean areTreesEqualVerified(TreeNode root1, TreeNode root2) {
+
+        if (root1 == null || root2 == null) {
+            return root1 == root2;
+        }
+
+        computeFingerprints(root1);
+        computeFingerprints(root2);
+
+        if (root1.repeatedValues || root2.repeatedValues) {
+            return areTreesEqual(root1, root2);
+        }
+        if (root1.value != root2.value || root1.subtreeSize != root2.subtreeSize
+                || root1.fingerprint != root2.fingerprint) {
+            Metrics.Counter.TREE_COMPARISONS.increment();
+            return false;
+        }
+
+        Metrics.QueryEvent event = Metrics.beginQuery();
+        long compared = 0;
+        boolean equal = true;
+
+        // coppie da confrontare, il primo nodo di ogni coppia è in cima
+        ArrayDeque<TreeNode> pending = new ArrayDeque<>();
+        pending.push(root2);
+        pending.push(root1);
+        while (!pending.isEmpty()) {
+            TreeNode node1 = pending.pop();
+            TreeNode node2 = pending.pop();
+            compared++;
+
+            TreeNode[] children1 = node1.sortedChildren;
+            TreeNode[] children2 = node2.sortedChildren;
+            if (node1.value != node2.value || children1.length != children2.length) {
+                equal = false;
+                break;
+            }
+            for (int i = children1.length - 1; i >= 0; i--) {
+                pending.push(children2[i]);
+                pending.push(children1[i]);
+            }
+        }
+
+        Metrics.Counter.TREE_COMPARISONS.add(compared);
+        Metrics.end(event, "areTreesEqualVerified", compared);
+        return equal;
+    }
+
+    // restituisce la prima coppia di nodi che differisce, null se gli alberi
+    // sono uguali; scende solo lungo i sottoalberi con impronta diversa
+    static Mismatch findFirstDifference(TreeNode root1, TreeNode root2) {
+
+        if (root1 == null || root2 == null) {
+            return root1 == root2 ? null : new Mismatch(root1, root2);
+        }
+
+        computeFingerprints(root1);
+        computeFingerprints(root2);
+
+        Metrics.QueryEvent event = Metrics.beginQuery();
+        TreeNode node1 = root1;
+        TreeNode node2 = root2;
+        long compared = 1;
+        Mismatch mismatch;
+
+        descent: while (true) {
+            if (node1.fingerprint == node2.fingerprint && node1.subtreeSize == node2.subtreeSize
+                    && node1.value == node2.value) {
+                mismatch = null;
+                break;
+            }
+
+            TreeNode[] children1 = node1.sortedChildren;
+            TreeNode[] children2 = node2.sortedChildren;
+
+            // la differenza è in questo nodo se cambiano valore o figli diretti
+            if (node1.value != node2.value || children1.length != children2.length) {
+                mismatch = new Mismatch(node1, node2);
+                break;
+            }
+
+            int next = -1;
+            for (int i = 0; i < children1.length; i++) {
+                TreeNode child1 = children1[i];
+                TreeNode child2 = children2[i];
+                compared++;
+
+                if (child1.value != child2.value) {
+                    mismatch = new Mismatch(node1, node2);
+                    break descent;
+                }
+
+                if (next == -1 && (child1.fingerprint != child2.fingerprint
+                        || child1.subtreeSize != child2.subtreeSize)) {
+                    next = i;
+                }
+            }
+
+            if (next == -1) {
+                // figli con impronte uguali danno lo stesso padre, quindi
+                // non si dovrebbe mai arrivare qui
+                mismatch = new Mismatch(node1, node2);
+                break;
+            }
+
+            node1 = children1[next];
+            node2 = children2[next];
+        }
+
+        Metrics.Counter.TREE_COMPARISONS.add(compared);
+        Metrics.end(event, "findFirstDifference", compared);
+        return mismatch;
+    }
+
+    // confronta due alberi compatti: essendo in forma canonica basta
+    // confrontare gli array, O(n)
+    public static boolean areTreesEqual(CompactTree tree1, CompactTree tree2) {
+
+        if (tree1 == null || tree2 == null) {
+            return tree1 == tree2;
+        }
+
+        // i padri sono determinati da firstChild, non serve confrontarli.
+        // mismatch restituisce la prima posizione diversa, -1 se non ce ne
+        // sono: si contano le coppie di nodi fino alla prima differenza
+        int values = tree1.values.mismatch(tree2.values);
+        int children = tree1.firstChild.mismatch(tree2.firstChild);
+        int first = values < 0 ? children : children < 0 ? values : Math.min(values, children);
+        int size = Math.min(tree1.size(), tree2.size());
+        Metrics.Counter.TREE_COMPARISONS.add(first < 0 ? size : Math.min(first + 1, size));
+        return first < 0;
+    }
+
+    // scrittore iterativo di alberi: accumula l'output in un unico buffer di
+    // byte e lo scrive a blocchi su un OutputStream o un Writer. Visita i nodi
+    // con una pila esplicita, quindi la profondità dell'albero non è un limite.
+    static class TreeWriter implements Closeable, Flushable {
+
+        enum Format {
+            // "padre -> figli", una riga per ogni nodo interno, come printTree
+            ARROW,
+            // "padre, figlio", una riga per arco, come parent_child_pairs.txt;
+            // un albero di un solo nodo non ha archi e i caricatori non
+            // saprebbero rileggerlo, quindi write lo rifiuta
+            PAIRS,
+            // "[1, [2, [4]], [3]]", come nested_list.txt
+            NESTED_LIST
+        }
+
+        static final int BUFFER_SIZE = 1 << 20;
+
+        private final OutputStream stream;
+        private final Writer writer;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private char[] chars;
+        private int count;
+
+        TreeWriter(OutputStream out) {
+            this.stream = out;
+            this.writer = null;
+        }
+
+        TreeWriter(Writer out) {
+            this.stream = null;
+            this.writer = out;
+        }
+
+        void write(CompactTree tree, Format format) throws IOException {
+            if (tree == null) {
+                return;
+            }
+            if (format == Format.PAIRS && tree.size() == 1) {
+                throw singleNode(tree.value(0));
+            }
+
+            if (format == Format.NESTED_LIST) {
+                // i valori >= 0 sono nodi da aprire, ~nodo chiude il nodo
+                int[] stack = new int[2 * tree.size()];
+                int top = 0;
+                stack[top++] = 0;
+
+                while (top > 0) {
+                    int entry = stack[--top];
+                    if (entry < 0) {
+                        put(']');
+                        continue;
+                    }
+
+                    if (entry != 0) {
+                        put(',');
+                        put(' ');
+                    }
+                    put('[');
+                    putInt(tree.value(entry));
+
+                    stack[top++] = ~entry;
+                    int first = tree.firstChild(entry);
+                    for (int child = first + tree.childCount(entry) - 1; child >= first; child--) {
+                        stack[top++] = child;
+                    }
+                }
+                put('\n');
+                return;
+            }
+
+            int[] stack = new int[tree.size()];
+            int top = 0;
+            stack[top++] = 0;
+
+            while (top > 0) {
+                int node = stack[--top];
+                int first = tree.firstChild(node);
+                int last = first + tree.childCount(node);
+
+                if (format == Format.ARROW && first < last) {
+                    putInt(tree.value(node));
+                    putAscii(" ->");
+                    for (int child = first; child < last; child++) {
+                        put(' ');
+                        putInt(tree.value(child));
+                    }
+                    put('\n');
+                } else if (format == Format.PAIRS) {
+                    for (int child = first; child < last; child++) {
+                        putInt(tree.value(node));
+                        put(',');
+                        put(' ');
+                        putInt(tree.value(child));
+                        put('\n');
+                    }
+                }
+
+                // i figli vanno nella pila al contrario per visitarli in ordine
+                for (int child = last - 1; child >= first; child--) {
+                    stack[top++] = child;
+                }
+            }
+        }
+
+        void write(TreeNode root, Format format) throws IOException {
+            if (root == null) {
+                return;
+            }
+            if (format == Format.PAIRS && root.children.isEmpty()) {
+                throw singleNode(root.value);
+            }
+
+            // pila dei figli ancora da visitare per ogni nodo aperto
+            ArrayDeque<Iterator<TreeNode>> stack = new ArrayDeque<>();
+            ArrayDeque<TreeNode> path = new ArrayDeque<>();
+
+            open(root, format);
+            stack.push(root.children.iterator());
+            path.push(root);
+
+            while (!stack.isEmpty()) {
+                Iterator<TreeNode> children = stack.peek();
+
+                if (!children.hasNext()) {
+                    stack.pop();
+                    path.pop();
+                    if (format == Format.NESTED_LIST) {
+                        put(']');
+                    }
+                    continue;
+                }
+
+                TreeNode parent = path.peek();
+                TreeNode child = children.next();
+                if (format == Format.NESTED_LIST) {
+                    put(',');
+                    put(' ');
+                }
+                open(child, format);
+                if (format == Format.PAIRS) {
+                    // l'arco si scrive quando si entra nel figlio
+                    putInt(parent.value);
+                    put(',');
+                    put(' ');
+                    putInt(child.value);
+                    put('\n');
+                }
+
+                stack.push(child.children.iterator());
+                path.push(child);
+            }
+
+            if (format == Format.NESTED_LIST) {
+                put('\n');
+            }
+        }
+
+        private static IllegalArgumentException singleNode(int value) {
+            return new IllegalArgumentException(
+                    "L'albero con il solo nodo " + value + " non si può scrivere come coppie.");
+        }
+
+        // scrive la parte di un nodo che precede i suoi figli
+        private void open(TreeNode node, Format format) throws IOException {
+            if (format == Format.NESTED_LIST) {
+                put('[');
+                putInt(node.value);
+            } else if (format == Format.ARROW && !node.children.isEmpty()) {
+                putInt(node.value);
+                putAscii(" ->");
+                for (TreeNode child : node.children) {
+                    put(' ');
+                    putInt(child.value);
+                }
+                put('\n');
+            }
+        }
+
+        private void put(char c) throws IOException {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) c;
+        }
+
+        private void putAscii(String text) throws IOException {
+            for (int i = 0; i < text.length(); i++) {
+                put(text.charAt(i));
+            }
+        }
+
+        // scrive un intero in decimale senza creare stringhe
+        private void putInt(int value) throws IOException {
+            if (count + 11 > buffer.length) {
+                flushBuffer();
+            }
+
+            long v = value;
+            if (v < 0) {
+                buffer[count++] = '-';
+                v = -v;
+            }
+
+            int end = count + digits(v);
+            for (int i = end - 1; i >= count; i--) {
+                buffer[i] = (byte) ('0' + v % 10);
+                v /= 10;
+            }
+            count = end;
+        }
+
+        private static int digits(long v) {
+            int digits = 1;
+            while (v >= 10) {
+                v /= 10;
+                digits++;
+            }
+            return digits;
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count == 0) {
+                return;
+            }
+
+            if (stream != null) {
+                stream.write(buffer, 0, count);
+            } else {
+                // l'output è solo ASCII, quindi ogni byte è un carattere
+                if (chars == null) {
+                    chars = new char[buffer.length];
+                }
+                for (int i = 0; i < count; i++) {
+                    chars[i] = (char) buffer[i];
+                }
+                writer.write(chars, 0, count);
+            }
+            count = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            if (stream != null) {
+                stream.flush();
+            } else {
+                writer.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushBuffer();
+            if (stream != null) {
+                stream.close();
+            } else {
+                writer.close();
+            }
+        }
+    }
+
+    // stampa un albero compatto in preordine, una riga per nodo interno
+    static void printTree(CompactTree tree) {
+        if (tree == null) {
+            System.out.println("Root is null");
+            return;
+        }
+
+        try {
+            TreeWriter writer = new TreeWriter(System.out);
+            writer.write(tree, TreeWriter.Format.ARROW);
+            writer.flush(); // System.out non va chiuso
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // stampa un albero in preordine, una riga per nodo interno
     static void printTree(TreeNode root) {
         // Verifica se il nodo radice è nullo
         if (root == null) {
@@ -236,25 +1657,52 @@ public class Esercizio1 {
             return;
         }
 
-        StringBuilder sb = new StringBuilder();
+        try {
+            TreeWriter writer = new TreeWriter(System.out);
+            writer.write(root, TreeWriter.Format.ARROW);
+            writer.flush(); // System.out non va chiuso
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        // Aggiungi il valore del nodo radice se ha figli
-        if (!root.children.isEmpty()) {
-            sb.append(root.value).append(" -> ");
+    // costruisce i due alberi con tutti i costruttori, TreeNode e compatti,
+    // più le conversioni CompactTree.of, e controlla che ogni coppia di
+    // alberi compatti, il confronto con le impronte e quello parallelo diano
+    // lo stesso verdetto di areTreesEqual sui TreeNode
+    static void checkRepresentations(String pairList, String nestedList) throws IOException {
+        TreeNode[] nodes = { buildTreeFromPairs(pairList), buildTreeFromNestedList(nestedList) };
+        CompactTree[][] compact = {
+                { new PairLoader().load(pairList), CompactTree.of(nodes[0]) },
+                { new NestedListLoader().load(nestedList), CompactTree.of(nodes[1]) } };
 
-            // Aggiungi i valori dei figli
-            for (TreeNode child : root.children) {
-                sb.append(child.value).append(" ");
+        ParallelTreeComparator parallel = new ParallelTreeComparator();
+        int checks = 0;
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 2; j++) {
+                boolean expected = areTreesEqual(nodes[i], nodes[j]);
+                if (areTreesEqualVerified(nodes[i], nodes[j]) != expected) {
+                    throw new IllegalStateException("areTreesEqualVerified sugli alberi " + i + " e " + j
+                            + " dà un verdetto diverso da areTreesEqual.");
+                }
+                if (parallel.areTreesEqual(nodes[i], nodes[j]) != expected) {
+                    throw new IllegalStateException("Il confronto parallelo degli alberi " + i + " e " + j
+                            + " dà un verdetto diverso da areTreesEqual.");
+                }
+                checks += 2;
+                for (CompactTree tree1 : compact[i]) {
+                    for (CompactTree tree2 : compact[j]) {
+                        if (areTreesEqual(tree1, tree2) != expected) {
+                            throw new IllegalStateException("Gli alberi compatti " + i + " e " + j
+                                    + " danno un verdetto diverso da areTreesEqual.");
+                        }
+                        checks++;
+                    }
+                }
             }
-
-            // Stampa il risultato
-            System.out.println(sb.toString().trim());
-        }
-
-        // Stampa ricorsivamente gli alberi dei figli
-        for (TreeNode child : root.children) {
-            printTree(child);
         }
+        System.out.println("Verifica riuscita: " + checks + " confronti, alberi "
+                + (areTreesEqual(nodes[0], nodes[1]) ? "uguali" : "diversi"));
     }
 
     public static void main(String[] args) {
@@ -267,6 +1715,48 @@ public class Esercizio1 {
         String pairList = "parent_child_pairs.txt";
         String nestedList = "nested_list.txt";
 
+        // con --check [<coppie> <lista annidata>] verifica che il confronto
+        // degli alberi compatti, quello con le impronte e quello parallelo
+        // diano lo stesso risultato di areTreesEqual
+        if (args.length > 0 && args[0].equals("--check")) {
+            try {
+                checkRepresentations(args.length > 2 ? args[1] : pairList, args.length > 2 ? args[2] : nestedList);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        // con --compact gli alberi compatti vengono letti dai caricatori a
+        // flusso, e il throughput del caricamento delle coppie va su System.err
+        if (args.length > 0 && args[0].equals("--compact")) {
+            try {
+                PairLoader loader = new PairLoader();
+                CompactTree compact1 = loader.load(pairList);
+                CompactTree compact2 = new NestedListLoader().load(nestedList);
+                System.err.println(loader);
+                System.out.println(areTreesEqual(compact1, compact2) ? "I due alberi sono uguali"
+                        : "I due alberi sono diversi");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        // con --snapshot gli alberi compatti vengono riletti dalle istantanee
+        // binarie accanto ai file di input, se sono ancora valide
+        if (args.length > 0 && args[0].equals("--snapshot")) {
+            try {
+                CompactTree compact1 = TreeSnapshot.loadOrBuild(pairList, false);
+                CompactTree compact2 = TreeSnapshot.loadOrBuild(nestedList, true);
+                System.out.println(areTreesEqual(compact1, compact2) ? "I due alberi sono uguali"
+                        : "I due alberi sono diversi");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
         TreeNode tree1 = buildTreeFromPairs(pairList); // O(n) dove n è il numero di nodi
         TreeNode tree2 = buildTreeFromNestedList(nestedList); // O(m) dove m è il numero di caratteri della stringa
 
@@ -274,7 +1764,7 @@ public class Esercizio1 {
         // System.out.println();
         // printTree(tree2);
 
-        if (areTreesEqual(tree1, tree2)) {
+        if (areTreesEqualVerified(tree1, tree2)) {
             System.out.println("I due alberi sono uguali");
         } else {
             System.out.println("I due alberi sono diversi");
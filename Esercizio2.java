@@ -28,22 +28,86 @@
  * caso, il MAX_PREFIX_LENGTH è 4, il che limita il numero di iterazioni
  * necessarie per trovare le decodifiche, ottimizzando le prestazioni.
  *
+ * La mappa viene compilata in un `HuffmanDecoder`, un trie binario su array:
+ * da ogni posizione si leggono al più MAX_PREFIX_LENGTH bit e ogni stato
+ * del trie con una lettera è un prefisso valido, senza creare una stringa
+ * per ogni prefisso né cercarla nella mappa.
+ *
+ * Le tabelle dei codici possono anche essere lette da file con `loadTable`.
+ * Ogni tabella viene compilata una volta sola: `DecoderCache` tiene i
+ * decodificatori già compilati in una cache LRU, con chiave un hash della
+ * tabella, e conta accessi riusciti, mancati e rimozioni, pubblicati anche
+ * in `Metrics`.
+ *
+ * Quando serve solo il numero di decodifiche, `countDecodings` lo calcola
+ * senza costruirle, con la programmazione dinamica dalla fine della stringa:
+ * il costo è O(n * MAX_PREFIX_LENGTH) in tempo e O(MAX_PREFIX_LENGTH) in
+ * memoria. `countDecodingsExact` fa lo stesso con BigInteger, per i conteggi
+ * che non stanno in un long.
+ *
+ * Le decodifiche sono salvate nella classe `DecodingDag`, un grafo aciclico
+ * sulle posizioni della stringa in cui ogni arco è un codice: la memoization
+ * è un array indicizzato per posizione con il numero di decodifiche di ogni
+ * suffisso, e i suffissi comuni sono condivisi invece di essere copiati. La
+ * memoria è O(n * MAX_PREFIX_LENGTH) indipendentemente dal numero di
+ * risultati, le stringhe si espandono una alla volta, ognuna in O(n), e la
+ * k-esima si raggiunge direttamente in O(n * MAX_PREFIX_LENGTH).
+ * Il main scrive così le decodifiche direttamente sull'output, e con --page
+ * ne stampa solo un intervallo.
+ *
+ * Per stringhe molto lunghe `ParallelCounter` divide il conteggio in blocchi
+ * su un ForkJoinPool: ogni blocco diventa una matrice di trasferimento
+ * L x L, con L = MAX_PREFIX_LENGTH, e le matrici si moltiplicano a coppie in
+ * parallelo. Il risultato è lo stesso del conteggio sequenziale, esatto in
+ * long oppure modulo un numero dato. Con --count --parallel il main conta
+ * in parallelo e in sequenza, esatto e modulo 10^9 + 7, e controlla che i
+ * risultati coincidano.
+ *
+ * L'input è letto tramite l'interfaccia `BitSource`: oltre alla stringa di
+ * '0' e '1' si può usare con --packed un file di bit impacchettati, 8 per
+ * byte, che `PackedBits` mappa in memoria senza copiarlo. Conteggio ed
+ * enumerazione lavorano direttamente sui bit, con 16 volte meno memoria e
+ * I/O rispetto al testo.
+ *
+ * La costruzione del DAG conta in `Metrics` i suffissi calcolati (accessi
+ * mancati alla memoization), le letture di suffissi già calcolati (accessi
+ * riusciti) e i prefissi provati; lettura, costruzione e query emettono
+ * eventi JFR.
+ *
  * La classe utilizza StringBuilder per costruire le stringhe decodificate,
  * poiché è più efficiente rispetto alla concatenazione di stringhe.
  *
  */
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class Esercizio2 {
 
     private static final Map<String, String> huffmanMap;
+    // decodificatori già compilati, condivisi da tutte le tabelle
+    static final DecoderCache DECODERS = new DecoderCache(64);
+    private static final HuffmanDecoder DECODER;
     private static final int MAX_PREFIX_LENGTH;
 
     static {
@@ -59,106 +123,1022 @@ public class Esercizio2 {
         huffmanMap.put("0110", "G");
         huffmanMap.put("0001", "H");
 
+        DECODER = DECODERS.get(huffmanMap);
         MAX_PREFIX_LENGTH = getMaxPrefixLength();
     }
 
+    // decodificatore compilato: la tabella dei codici diventa un trie binario
+    // salvato su array, che si percorre un bit alla volta. Da una posizione
+    // trova tutte le lunghezze di codice valide in O(MAX_PREFIX_LENGTH), senza
+    // creare stringhe.
+    static class HuffmanDecoder {
+        static final int ROOT = 0;
+
+        private final int[] next; // next[2 * stato + bit], -1 se non esiste
+        private final int[] symbol; // lettera che termina nello stato, -1 se nessuna
+        private final String[] letters;
+        private final int maxLength;
+        private final int minLength;
+
+        HuffmanDecoder(Map<String, String> table) {
+            if (table.isEmpty()) {
+                throw new IllegalArgumentException("La tabella dei codici è vuota.");
+            }
+
+            // al più un nuovo stato per ogni bit di ogni codice
+            int capacity = 1;
+            for (String code : table.keySet()) {
+                capacity += code.length();
+            }
+
+            int[] next = new int[2 * capacity];
+            int[] symbol = new int[capacity];
+            Arrays.fill(next, -1);
+            Arrays.fill(symbol, -1);
+
+            String[] letters = new String[table.size()];
+            int states = 1;
+            int count = 0;
+            int max = 0;
+            int min = Integer.MAX_VALUE;
+
+            for (Map.Entry<String, String> entry : table.entrySet()) {
+                String code = entry.getKey();
+                if (code.isEmpty()) {
+                    throw new IllegalArgumentException("Codice vuoto per " + entry.getValue());
+                }
+
+                int state = ROOT;
+                for (int i = 0; i < code.length(); i++) {
+                    int bit = bit(code.charAt(i));
+                    if (bit < 0) {
+                        throw new IllegalArgumentException("Codice non binario: " + code);
+                    }
+                    if (next[2 * state + bit] == -1) {
+                        next[2 * state + bit] = states++;
+                    }
+                    state = next[2 * state + bit];
+                }
+
+                symbol[state] = count;
+                letters[count++] = entry.getValue();
+                max = Math.max(max, code.length());
+                min = Math.min(min, code.length());
+            }
+
+            this.next = Arrays.copyOf(next, 2 * states);
+            this.symbol = Arrays.copyOf(symbol, states);
+            this.letters = letters;
+            this.maxLength = max;
+            this.minLength = min;
+        }
+
+        // stato raggiunto leggendo il bit dato (0, 1 oppure -1 se non valido)
+        // dallo stato dato, -1 se nessun codice continua così
+        int next(int state, int bit) {
+            return bit < 0 ? -1 : next[2 * state + bit];
+        }
+
+        // indice della lettera il cui codice termina nello stato, -1 se nessuna
+        int symbol(int state) {
+            return symbol[state];
+        }
+
+        String letter(int symbol) {
+            return letters[symbol];
+        }
+
+        int symbolCount() {
+            return letters.length;
+        }
+
+        int maxLength() {
+            return maxLength;
+        }
+
+        int minLength() {
+            return minLength;
+        }
+
+        // scrive in lengths e symbols, in ordine crescente di lunghezza, i
+        // codici che iniziano in start e restituisce quanti sono
+        int matches(BitSource bits, long start, int[] lengths, int[] symbols) {
+            int count = 0;
+            int state = ROOT;
+            long end = Math.min(bits.length(), start + maxLength);
+
+            for (long i = start; i < end; i++) {
+                state = next(state, bits.bit(i));
+                if (state < 0) {
+                    break;
+                }
+                if (symbol[state] >= 0) {
+                    lengths[count] = (int) (i - start + 1);
+                    symbols[count++] = symbol[state];
+                }
+            }
+            return count;
+        }
+
+        static int bit(char c) {
+            return c == '0' ? 0 : c == '1' ? 1 : -1;
+        }
+    }
+
+    // sequenza di bit su cui lavorano i decodificatori
+    interface BitSource {
+        long length();
+
+        // bit in posizione i: 0, 1 oppure -1 se non è un bit valido
+        int bit(long i);
+    }
+
+    // bit scritti come caratteri '0' e '1', come in binario.txt
+    static class TextBits implements BitSource {
+        private final CharSequence text;
+
+        TextBits(CharSequence text) {
+            this.text = text;
+        }
+
+        @Override
+        public long length() {
+            return text.length();
+        }
+
+        @Override
+        public int bit(long i) {
+            return HuffmanDecoder.bit(text.charAt((int) i));
+        }
+    }
+
+    // bit impacchettati, 8 per byte a partire dal più significativo. I file
+    // vengono mappati in memoria a segmenti di 1 GB, quindi non c'è limite di
+    // lunghezza e l'input non viene mai copiato nello heap.
+    static class PackedBits implements BitSource {
+        static final int SEGMENT_SHIFT = 30;
+        static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+        private final ByteBuffer[] segments;
+        private final long length;
+
+        PackedBits(byte[] bytes, long length) {
+            this(new ByteBuffer[] { ByteBuffer.wrap(bytes) }, length);
+        }
+
+        private PackedBits(ByteBuffer[] segments, long length) {
+            this.segments = segments;
+            this.length = length;
+        }
+
+        // mappa il file; con length < 0 si usano tutti i bit del file
+        static PackedBits map(String filename, long length) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (length < 0) {
+                    length = 8 * size;
+                } else if ((length + 7) / 8 > size) {
+                    throw new IllegalArgumentException("Il file " + filename + " contiene meno di " + length + " bit");
+                }
+
+                int count = (int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+                ByteBuffer[] segments = new ByteBuffer[count];
+                for (int i = 0; i < count; i++) {
+                    long offset = (long) i << SEGMENT_SHIFT;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                            Math.min(size - offset, 1L << SEGMENT_SHIFT));
+                }
+                // la mappatura resta valida anche dopo la chiusura del canale
+                return new PackedBits(segments, length);
+            }
+        }
+
+        // impacchetta una stringa di '0' e '1'
+        static PackedBits pack(CharSequence text) {
+            byte[] bytes = new byte[(text.length() + 7) / 8];
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) == '1') {
+                    bytes[i >>> 3] |= 0x80 >>> (i & 7);
+                }
+            }
+            return new PackedBits(bytes, text.length());
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public int bit(long i) {
+            long index = i >>> 3;
+            int b = segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+            return (b >>> (7 - (int) (i & 7))) & 1;
+        }
+    }
+
+    // cache dei decodificatori compilati, con al più capacity tabelle e
+    // rimozione di quella usata meno di recente (LRU). La chiave è un hash a 64
+    // bit della tabella, e la tabella salvata viene confrontata a ogni accesso
+    // per non restituire mai il decodificatore di una tabella diversa.
+    static class DecoderCache {
+        private final int capacity;
+        private final LinkedHashMap<Long, CachedDecoder> decoders;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        private static class CachedDecoder {
+            final Map<String, String> table;
+            final HuffmanDecoder decoder;
+
+            CachedDecoder(Map<String, String> table, HuffmanDecoder decoder) {
+                this.table = table;
+                this.decoder = decoder;
+            }
+        }
+
+        DecoderCache(int capacity) {
+            this.capacity = capacity;
+            // accessOrder = true: l'iterazione parte dalla tabella usata meno di recente
+            this.decoders = new LinkedHashMap<Long, CachedDecoder>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, CachedDecoder> eldest) {
+                    if (size() > DecoderCache.this.capacity) {
+                        evictions++;
+                        Metrics.Counter.DECODER_CACHE_EVICTIONS.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        // restituisce il decodificatore della tabella, compilandolo solo se
+        // non è già in cache
+        synchronized HuffmanDecoder get(Map<String, String> table) {
+            Long key = tableHash(table);
+            CachedDecoder cached = decoders.get(key);
+            if (cached != null && cached.table.equals(table)) {
+                hits++;
+                Metrics.Counter.DECODER_CACHE_HITS.increment();
+                return cached.decoder;
+            }
+
+            misses++;
+            Metrics.Counter.DECODER_CACHE_MISSES.increment();
+            Metrics.BuildEvent event = Metrics.beginBuild();
+            HuffmanDecoder decoder = new HuffmanDecoder(table);
+            Metrics.end(event, "huffman-decoder", decoder.symbolCount());
+            decoders.put(key, new CachedDecoder(new HashMap<>(table), decoder));
+            return decoder;
+        }
+
+        // hash della tabella, indipendente dall'ordine delle voci
+        static long tableHash(Map<String, String> table) {
+            long hash = table.size();
+            for (Map.Entry<String, String> entry : table.entrySet()) {
+                long h = 1125899906842597L;
+                String code = entry.getKey();
+                String letter = entry.getValue();
+                for (int i = 0; i < code.length(); i++) {
+                    h = 31 * h + code.charAt(i);
+                }
+                h = 31 * h + '=';
+                for (int i = 0; i < letter.length(); i++) {
+                    h = 31 * h + letter.charAt(i);
+                }
+                // le voci si sommano dopo averle mescolate, come in Map.hashCode
+                h ^= h >>> 33;
+                h *= 0xFF51AFD7ED558CCDL;
+                h ^= h >>> 33;
+                hash += h;
+            }
+            return hash;
+        }
+
+        synchronized int size() {
+            return decoders.size();
+        }
+
+        synchronized long hits() {
+            return hits;
+        }
+
+        synchronized long misses() {
+            return misses;
+        }
+
+        synchronized long evictions() {
+            return evictions;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "DecoderCache [size=" + decoders.size() + ", capacity=" + capacity + ", hits=" + hits
+                    + ", misses=" + misses + ", evictions=" + evictions + "]";
+        }
+    }
+
+    // legge una tabella dei codici da file, una voce per riga nella forma
+    // "<codice> <lettera>" (sono ammessi anche ',' e '=' come separatori);
+    // le righe vuote e quelle che iniziano con '#' vengono ignorate
+    static Map<String, String> loadTable(String filename) throws IOException {
+        Metrics.ParseEvent event = Metrics.beginParse();
+        Map<String, String> table = new LinkedHashMap<>();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] parts = line.split("[\\s,=]+");
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException(filename + ":" + lineNumber + ": voce non valida");
+                }
+                if (table.put(parts[0], parts[1]) != null) {
+                    throw new IllegalArgumentException(filename + ":" + lineNumber + ": codice ripetuto " + parts[0]);
+                }
+            }
+        }
+
+        Metrics.end(event, filename, Files.size(Paths.get(filename)), table.size());
+        return table;
+    }
+
     public static void main(String[] args) throws IOException {
 
-        if (args.length == 0) {
-            System.err.println("Usage: java Esercizio2 <input_file>");
+        // con --count stampa solo il numero di decodifiche, senza costruirle,
+        // e con --parallel lo calcola anche con ParallelCounter;
+        // con --page <da> <quante> stampa solo le decodifiche da "da" in poi;
+        // con --table <file> usa la tabella dei codici del file;
+        // con --packed legge l'input come bit impacchettati, 8 per byte,
+        // eventualmente solo i primi --bits <n>
+        boolean countOnly = false;
+        boolean parallel = false;
+        boolean packed = false;
+        long packedBits = -1;
+        long pageFrom = 0;
+        long pageSize = -1;
+        HuffmanDecoder decoder = DECODER;
+        String inputFile = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--count":
+                        countOnly = true;
+                        break;
+                    case "--parallel":
+                        parallel = true;
+                        break;
+                    case "--page":
+                        pageFrom = Long.parseLong(args[++i]);
+                        pageSize = Long.parseLong(args[++i]);
+                        break;
+                    case "--table":
+                        decoder = DECODERS.get(loadTable(args[++i]));
+                        break;
+                    case "--packed":
+                        packed = true;
+                        break;
+                    case "--bits":
+                        packedBits = Long.parseLong(args[++i]);
+                        break;
+                    default:
+                        inputFile = args[i];
+                        break;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            inputFile = null;
+        }
+
+        // --bits limita solo l'input impacchettato
+        if (packedBits >= 0 && !packed) {
+            System.err.println("--bits si usa solo con --packed");
+            inputFile = null;
+        }
+        if (parallel && !countOnly) {
+            System.err.println("--parallel si usa solo con --count");
+            inputFile = null;
+        }
+
+        if (inputFile == null) {
+            System.err.println(
+                    "Usage: java Esercizio2 [--table <code_file>] [--count [--parallel] | --page <from> <count>]"
+                            + " [--packed [--bits <n>]] <input_file>");
             System.exit(1);
         }
 
-        BufferedReader reader = new BufferedReader(new FileReader(args[0]));
-        String binaryInput = reader.readLine().trim();
-        reader.close();
+        Metrics.ParseEvent event = Metrics.beginParse();
+        BitSource binaryInput;
+        if (packed) {
+            binaryInput = PackedBits.map(inputFile, packedBits);
+        } else {
+            BufferedReader reader = new BufferedReader(new FileReader(inputFile));
+            binaryInput = new TextBits(reader.readLine().trim());
+            reader.close();
+        }
+        Metrics.end(event, inputFile, Files.size(Paths.get(inputFile)), binaryInput.length());
 
-        if (binaryInput.isEmpty()) {
+        if (binaryInput.length() == 0) {
             System.out.println(0);
             return;
         }
 
-        // Risolvi usando la programmazione dinamica con memoization
-        List<String> sequences = decodeUsingDP(binaryInput);
+        if (countOnly && parallel) {
+            System.out.println(countParallelChecked(binaryInput, decoder));
+            return;
+        }
+
+        if (countOnly) {
+            try {
+                System.out.println(countDecodings(binaryInput, decoder));
+            } catch (ArithmeticException e) {
+                // il numero di decodifiche non sta in un long
+                System.out.println(countDecodingsExact(binaryInput, decoder));
+            }
+            return;
+        }
+
+        // Le decodifiche vengono scritte una alla volta, senza tenerle in memoria
+        DecodingDag decodings = new DecodingDag(binaryInput, decoder);
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+
+        if (pageSize >= 0) {
+            decodings.write(out, pageFrom, pageSize);
+        } else if (decodings.count() == 0) {
+            out.write("0\n");
+        } else {
+            // stesso formato di printSequences
+            out.write(decodings.isCountExact() ? Long.toString(decodings.count())
+                    : countDecodingsExact(binaryInput, decoder).toString());
+            out.write(",\n");
+            decodings.write(out, 0, Long.MAX_VALUE);
+        }
+        out.flush();
+    }
+
+    // Insieme di tutte le decodifiche salvato come DAG sulle posizioni della
+    // stringa: gli archi che escono dalla posizione p sono i codici che
+    // iniziano in p, etichettati con la lettera e diretti alla posizione dopo
+    // il codice. Si tengono solo gli archi da cui si arriva alla fine, quindi
+    // ogni cammino da 0 a n è una decodifica. La memoria è O(n *
+    // MAX_PREFIX_LENGTH) e le stringhe si costruiscono solo quando servono, una
+    // alla volta e nello stesso ordine della decodifica ricorsiva.
+    static class DecodingDag implements Iterable<String> {
+        private final HuffmanDecoder decoder;
+        private final int length;
+        // ways[i] = decodifiche del suffisso da i, saturato a Long.MAX_VALUE;
+        // è la memoization, indicizzata per posizione
+        private final long[] ways;
+        // archi della posizione p: da edgeStart[p] a edgeStart[p + 1] - 1, in
+        // ordine crescente di lunghezza del codice
+        private final int[] edgeStart;
+        private final int[] edgeTarget;
+        private final int[] edgeSymbol;
+
+        DecodingDag(String binaryInput) {
+            this(new TextBits(binaryInput), DECODER);
+        }
+
+        DecodingDag(BitSource binaryInput, HuffmanDecoder decoder) {
+            if (binaryInput.length() >= Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Input troppo lungo per il DAG: " + binaryInput.length() + " bit");
+            }
+            Metrics.BuildEvent event = Metrics.beginBuild();
+            this.decoder = decoder;
+            this.length = (int) binaryInput.length();
+            this.ways = new long[length + 1];
+            ways[length] = 1;
+
+            // prima passata, dalla fine: decodifiche di ogni suffisso. Ogni
+            // suffisso si calcola una volta sola, e ogni codice trovato legge
+            // quello che lo segue, già calcolato
+            int edges = 0;
+            long tried = 0;
+            long hits = 0;
+            for (int start = length - 1; start >= 0; start--) {
+                long count = 0;
+                int state = HuffmanDecoder.ROOT;
+                for (int i = start; i < length && i < start + decoder.maxLength(); i++) {
+                    state = decoder.next(state, binaryInput.bit(i));
+                    tried++;
+                    if (state < 0) {
+                        break;
+                    }
+                    if (decoder.symbol(state) >= 0) {
+                        hits++;
+                        if (ways[i + 1] > 0) {
+                            count = saturatedAdd(count, ways[i + 1]);
+                            edges++;
+                        }
+                    }
+                }
+                ways[start] = count;
+            }
+
+            if (Metrics.isEnabled()) {
+                Metrics.Counter.DECODE_MEMO_MISSES.add(length);
+                Metrics.Counter.DECODE_MEMO_HITS.add(hits);
+                Metrics.Counter.DECODE_PREFIXES_TRIED.add(tried);
+            }
+
+            // seconda passata: archi verso suffissi decodificabili
+            this.edgeStart = new int[length + 1];
+            this.edgeTarget = new int[edges];
+            this.edgeSymbol = new int[edges];
+
+            int edge = 0;
+            for (int start = 0; start < length; start++) {
+                edgeStart[start] = edge;
+                int state = HuffmanDecoder.ROOT;
+                for (int i = start; i < length && i < start + decoder.maxLength(); i++) {
+                    state = decoder.next(state, binaryInput.bit(i));
+                    if (state < 0) {
+                        break;
+                    }
+                    int symbol = decoder.symbol(state);
+                    if (symbol >= 0 && ways[i + 1] > 0) {
+                        edgeTarget[edge] = i + 1;
+                        edgeSymbol[edge++] = symbol;
+                    }
+                }
+            }
+            edgeStart[length] = edge;
+            Metrics.end(event, "decoding-dag", edges);
+        }
+
+        private static long saturatedAdd(long a, long b) {
+            long sum = a + b;
+            return sum < 0 ? Long.MAX_VALUE : sum;
+        }
+
+        // numero di decodifiche, Long.MAX_VALUE se è troppo grande
+        long count() {
+            return ways[0];
+        }
+
+        boolean isCountExact() {
+            return ways[0] < Long.MAX_VALUE;
+        }
+
+        int edgeCount() {
+            return edgeTarget.length;
+        }
+
+        // k-esima decodifica, a partire da 0
+        String get(long k) {
+            Cursor cursor = new Cursor();
+            if (!cursor.seek(k)) {
+                throw new IndexOutOfBoundsException("Decodifica " + k + " su " + count());
+            }
+            return cursor.current();
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return iterator(0);
+        }
+
+        // scorre le decodifiche a partire dalla k-esima
+        Iterator<String> iterator(long from) {
+            Cursor cursor = new Cursor();
+            boolean found = cursor.seek(from);
 
-        // Stampa i risultati
-        printSequences(sequences);
+            return new Iterator<String>() {
+                private boolean hasNext = found;
+
+                @Override
+                public boolean hasNext() {
+                    return hasNext;
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext) {
+                        throw new NoSuchElementException();
+                    }
+                    String decoding = cursor.current();
+                    hasNext = cursor.advance();
+                    return decoding;
+                }
+            };
+        }
+
+        // vista come lista in sola lettura: get(k) e l'iterazione espandono le
+        // decodifiche solo quando vengono lette
+        List<String> asList() {
+            return new AbstractList<String>() {
+                @Override
+                public String get(int index) {
+                    return DecodingDag.this.get(index);
+                }
+
+                @Override
+                public int size() {
+                    return (int) Math.min(count(), Integer.MAX_VALUE);
+                }
+
+                @Override
+                public Iterator<String> iterator() {
+                    return DecodingDag.this.iterator();
+                }
+            };
+        }
+
+        // scrive al più limit decodifiche a partire dalla from-esima, una per
+        // riga seguita da ',' come printSequences, e restituisce quante sono
+        long write(Writer out, long from, long limit) throws IOException {
+            Metrics.QueryEvent event = Metrics.beginQuery();
+            Cursor cursor = new Cursor();
+            long written = 0;
+
+            for (boolean found = cursor.seek(from); found && written < limit; found = cursor.advance()) {
+                cursor.writeCurrent(out);
+                out.write(",\n");
+                written++;
+            }
+            Metrics.end(event, "decode", written);
+            return written;
+        }
+
+        // una decodifica come cammino nel DAG: edges[d] è l'arco della d-esima
+        // lettera
+        private class Cursor {
+            private final int[] edges = new int[length];
+            private int depth;
+
+            // si posiziona sulla k-esima decodifica, false se non esiste
+            boolean seek(long k) {
+                if (k < 0 || k >= ways[0]) {
+                    return false;
+                }
+
+                depth = 0;
+                int position = 0;
+                while (position < length) {
+                    // salta i rami interi finché k non cade nel sottoalbero
+                    int edge = edgeStart[position];
+                    while (k >= ways[edgeTarget[edge]]) {
+                        k -= ways[edgeTarget[edge++]];
+                    }
+                    edges[depth++] = edge;
+                    position = edgeTarget[edge];
+                }
+                return true;
+            }
+
+            // passa alla decodifica successiva, false se era l'ultima
+            boolean advance() {
+                while (depth > 0) {
+                    int edge = edges[--depth] + 1;
+                    int position = depth == 0 ? 0 : edgeTarget[edges[depth - 1]];
+
+                    if (edge < edgeStart[position + 1]) {
+                        // ogni arco porta alla fine: si completa con i primi archi
+                        edges[depth++] = edge;
+                        for (int next = edgeTarget[edge]; next < length; next = edgeTarget[edgeStart[next]]) {
+                            edges[depth++] = edgeStart[next];
+                        }
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            String current() {
+                StringBuilder sb = new StringBuilder(depth);
+                for (int d = 0; d < depth; d++) {
+                    sb.append(decoder.letter(edgeSymbol[edges[d]]));
+                }
+                return sb.toString();
+            }
+
+            void writeCurrent(Writer out) throws IOException {
+                for (int d = 0; d < depth; d++) {
+                    out.write(decoder.letter(edgeSymbol[edges[d]]));
+                }
+            }
+        }
     }
 
     // Decodifica la stringa binaria usando la programmazione dinamica con
-    // memoization
+    // memoization: costruisce il DAG delle decodifiche in O(n *
+    // MAX_PREFIX_LENGTH) e restituisce una lista che espande le stringhe solo
+    // quando vengono lette
     static List<String> decodeUsingDP(String binaryInput) {
-        Map<String, List<String>> memo = new HashMap<>(binaryInput.length());
+        return new DecodingDag(binaryInput).asList();
+    }
 
-        return decode(binaryInput, 0, memo);
+    // Conta le decodifiche senza costruirle, in O(n * MAX_PREFIX_LENGTH) tempo e
+    // O(MAX_PREFIX_LENGTH) memoria. ways(i) è il numero di decodifiche del
+    // suffisso che inizia in i, e si tengono solo gli ultimi valori in un
+    // buffer circolare. Lancia ArithmeticException se il risultato non sta in
+    // un long.
+    static long countDecodings(String binaryInput) {
+        return countDecodings(new TextBits(binaryInput), DECODER);
     }
 
-    // Parte ricorsiva per decodificare la stringa binaria
-    private static List<String> decode(String binaryInput, int start, Map<String, List<String>> memo) {
+    static long countDecodings(BitSource binaryInput, HuffmanDecoder decoder) {
+        Metrics.QueryEvent event = Metrics.beginQuery();
+        long length = binaryInput.length();
+        int window = decoder.maxLength() + 1;
+        long[] ways = new long[window];
+        ways[(int) (length % window)] = 1; // il suffisso vuoto ha una decodifica
 
-        // Usa StringBuilder per costruire la chiave della memoization
-        StringBuilder keyBuilder = new StringBuilder();
-        keyBuilder.append(start).append('-').append(binaryInput.length());
-        String key = keyBuilder.toString();
+        for (long start = length - 1; start >= 0; start--) {
+            long count = 0;
+            int state = HuffmanDecoder.ROOT;
+            for (long i = start; i < length && i < start + decoder.maxLength(); i++) {
+                state = decoder.next(state, binaryInput.bit(i));
+                if (state < 0) {
+                    break;
+                }
+                if (decoder.symbol(state) >= 0) {
+                    count = Math.addExact(count, ways[(int) ((i + 1) % window)]);
+                }
+            }
+            ways[(int) (start % window)] = count;
+        }
+
+        Metrics.end(event, "count", length);
+        return ways[0];
+    }
+
+    // Come countDecodings, ma in precisione arbitraria
+    static BigInteger countDecodingsExact(String binaryInput) {
+        return countDecodingsExact(new TextBits(binaryInput), DECODER);
+    }
+
+    static BigInteger countDecodingsExact(BitSource binaryInput, HuffmanDecoder decoder) {
+        Metrics.QueryEvent event = Metrics.beginQuery();
+        long length = binaryInput.length();
+        int window = decoder.maxLength() + 1;
+        BigInteger[] ways = new BigInteger[window];
+        Arrays.fill(ways, BigInteger.ZERO);
+        ways[(int) (length % window)] = BigInteger.ONE;
+
+        for (long start = length - 1; start >= 0; start--) {
+            BigInteger count = BigInteger.ZERO;
+            int state = HuffmanDecoder.ROOT;
+            for (long i = start; i < length && i < start + decoder.maxLength(); i++) {
+                state = decoder.next(state, binaryInput.bit(i));
+                if (state < 0) {
+                    break;
+                }
+                if (decoder.symbol(state) >= 0) {
+                    count = count.add(ways[(int) ((i + 1) % window)]);
+                }
+            }
+            ways[(int) (start % window)] = count;
+        }
+
+        Metrics.end(event, "count-exact", length);
+        return ways[0];
+    }
+
+    // Come countDecodings, ma modulo modulus (minore di 2^31), quindi senza
+    // limiti sulla lunghezza dell'input
+    static long countDecodingsMod(BitSource binaryInput, HuffmanDecoder decoder, long modulus) {
+        long length = binaryInput.length();
+        int window = decoder.maxLength() + 1;
+        long[] ways = new long[window];
+        ways[(int) (length % window)] = 1 % modulus;
+
+        for (long start = length - 1; start >= 0; start--) {
+            long count = 0;
+            int state = HuffmanDecoder.ROOT;
+            for (long i = start; i < length && i < start + decoder.maxLength(); i++) {
+                state = decoder.next(state, binaryInput.bit(i));
+                if (state < 0) {
+                    break;
+                }
+                if (decoder.symbol(state) >= 0) {
+                    count = (count + ways[(int) ((i + 1) % window)]) % modulus;
+                }
+            }
+            ways[(int) (start % window)] = count;
+        }
+
+        return ways[0];
+    }
+
+    // modulo del controllo di --count --parallel
+    static final long CHECK_MODULUS = 1_000_000_007L;
+
+    // conta le decodifiche con ParallelCounter, esatto e modulo CHECK_MODULUS,
+    // e controlla che i risultati coincidano con quelli sequenziali; stampa i
+    // tempi su System.err e restituisce il numero esatto di decodifiche
+    static String countParallelChecked(BitSource binaryInput, HuffmanDecoder decoder) {
+        long start = System.nanoTime();
+        long parallel;
+        try {
+            parallel = new ParallelCounter(decoder, 0).count(binaryInput);
+        } catch (ArithmeticException e) {
+            parallel = -1; // non sta in un long
+        }
+        long parallelMod = new ParallelCounter(decoder, CHECK_MODULUS).count(binaryInput);
+        long middle = System.nanoTime();
+
+        BigInteger sequential;
+        try {
+            sequential = BigInteger.valueOf(countDecodings(binaryInput, decoder));
+        } catch (ArithmeticException e) {
+            sequential = countDecodingsExact(binaryInput, decoder);
+        }
+        long sequentialMod = countDecodingsMod(binaryInput, decoder, CHECK_MODULUS);
+        long end = System.nanoTime();
+
+        boolean fits = sequential.bitLength() < 64;
+        if (fits ? parallel != sequential.longValue() : parallel != -1) {
+            throw new IllegalStateException("Il conteggio parallelo dà "
+                    + (parallel < 0 ? "un valore oltre i long" : Long.toString(parallel)) + " invece di " + sequential);
+        }
+        if (parallelMod != sequentialMod
+                || sequentialMod != sequential.mod(BigInteger.valueOf(CHECK_MODULUS)).longValue()) {
+            throw new IllegalStateException("Il conteggio parallelo modulo " + CHECK_MODULUS + " dà " + parallelMod
+                    + " invece di " + sequentialMod);
+        }
+        System.err.printf("parallelo %.1f ms (%d thread), sequenziale %.1f ms, conteggi uguali%n",
+                (middle - start) / 1e6, ForkJoinPool.getCommonPoolParallelism(), (end - middle) / 1e6);
+        return sequential.toString();
+    }
+
+    // Conteggio parallelo delle decodifiche. La stringa viene divisa in blocchi
+    // e per ogni blocco [a, b) si calcola su un ForkJoinPool una matrice L x L,
+    // con L = lunghezza massima dei codici, che dà ways(a), ..., ways(a + L - 1)
+    // in funzione di ways(b), ..., ways(b + L - 1). Il prodotto delle matrici è
+    // associativo, quindi si combinano a coppie in parallelo, e ways(0) è
+    // l'elemento in alto a sinistra del prodotto. Il costo è O(n * L^2 / p +
+    // (n / blocco) * L^3) con p thread.
+    static class ParallelCounter {
+        static final int MIN_CHUNK = 1 << 16;
+
+        private final ForkJoinPool pool;
+        private final HuffmanDecoder decoder;
+        private final int size; // L
+        // 0 per il conteggio esatto in long, altrimenti modulo (minore di 2^31)
+        private final long modulus;
+
+        ParallelCounter(HuffmanDecoder decoder, long modulus) {
+            this(ForkJoinPool.commonPool(), decoder, modulus);
+        }
 
-        // Verifica se il risultato è già memorizzato
-        if (memo.containsKey(key)) {
-            return memo.get(key);
+        ParallelCounter(ForkJoinPool pool, HuffmanDecoder decoder, long modulus) {
+            if (modulus < 0 || modulus > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Il modulo deve essere tra 1 e 2^31 - 1, oppure 0");
+            }
+            this.pool = pool;
+            this.decoder = decoder;
+            this.size = decoder.maxLength();
+            this.modulus = modulus;
         }
 
-        // Lista per contenere tutte le possibili decodifiche
-        List<String> sequences = new ArrayList<>();
+        // numero di decodifiche; senza modulo lancia ArithmeticException se
+        // non sta in un long
+        long count(BitSource binaryInput) {
+            long length = binaryInput.length();
+            if (length == 0) {
+                return modulus == 0 ? 1 : 1 % modulus;
+            }
+
+            long chunk = Math.max(MIN_CHUNK, length / (4 * pool.getParallelism()));
+            int chunks = (int) ((length + chunk - 1) / chunk);
+            long[] product = pool.invoke(new ChunkTask(binaryInput, chunk, 0, chunks));
+
+            // ways(n) = 1 e oltre la fine è 0, quindi serve solo la prima colonna
+            if (product[0] < 0) {
+                throw new ArithmeticException("Il numero di decodifiche non sta in un long");
+            }
+            return product[0];
+        }
+
+        private class ChunkTask extends RecursiveTask<long[]> {
+            private static final long serialVersionUID = 1L;
+
+            private final BitSource binaryInput;
+            private final long chunk;
+            private final int from;
+            private final int to;
 
-        // Lunghezza della stringa binaria
-        int length = binaryInput.length();
+            ChunkTask(BitSource binaryInput, long chunk, int from, int to) {
+                this.binaryInput = binaryInput;
+                this.chunk = chunk;
+                this.from = from;
+                this.to = to;
+            }
 
-        // Prova tutti i prefissi possibili che possono essere decodificati
-        for (int i = start + 1; i <= length && i <= start + MAX_PREFIX_LENGTH; i++) {
-            // Controlla se l'intervallo [start, i) è valido
-            if (start < i && i <= length) {
-                // Ottieni il prefisso usando StringBuilder
-                StringBuilder prefixBuilder = new StringBuilder();
-                prefixBuilder.append(binaryInput, start, i);
-                String prefix = prefixBuilder.toString();
+            @Override
+            protected long[] compute() {
+                if (to - from == 1) {
+                    long start = from * chunk;
+                    return transfer(binaryInput, start, Math.min(binaryInput.length(), start + chunk));
+                }
 
-                // Verifica se il prefisso è presente nella mappa di Huffman
-                if (huffmanMap.containsKey(prefix)) {
-                    String letter = huffmanMap.get(prefix); // Lettera associata al prefisso
-                    int nextStart = i; // Nuovo punto di inizio per la sottostringa rimanente
+                int middle = (from + to) >>> 1;
+                ChunkTask left = new ChunkTask(binaryInput, chunk, from, middle);
+                left.fork();
+                long[] right = new ChunkTask(binaryInput, chunk, middle, to).compute();
+                return multiply(left.join(), right);
+            }
+        }
 
-                    // Se la sottostringa rimanente è vuota, aggiungi la lettera alla lista
-                    if (nextStart == length) {
-                        sequences.add(letter);
-                    } else {
-                        // Decodifica ricorsiva della sottostringa rimanente
-                        List<String> suffixDecodings = decode(binaryInput, nextStart, memo);
+        // matrice del blocco [a, b): la riga r contiene i coefficienti di
+        // ways(a + r) rispetto a ways(b), ..., ways(b + L - 1)
+        long[] transfer(BitSource binaryInput, long a, long b) {
+            long length = binaryInput.length();
+            int window = size + 1;
+            // coefficienti delle ultime L + 1 posizioni, in un buffer circolare
+            long[][] coefficients = new long[window][size];
 
-                        // Costruisci le stringhe decodificate usando StringBuilder
-                        for (String decoding : suffixDecodings) {
-                            StringBuilder sb = new StringBuilder();
-                            sb.append(letter).append(decoding);
-                            sequences.add(sb.toString());
+            for (int r = 0; r < size; r++) {
+                coefficients[(int) ((b + r) % window)][r] = 1;
+            }
+
+            for (long start = b - 1; start >= a; start--) {
+                long[] row = coefficients[(int) (start % window)];
+                Arrays.fill(row, 0);
+
+                int state = HuffmanDecoder.ROOT;
+                for (long i = start; i < length && i < start + size; i++) {
+                    state = decoder.next(state, binaryInput.bit(i));
+                    if (state < 0) {
+                        break;
+                    }
+                    if (decoder.symbol(state) >= 0) {
+                        long[] next = coefficients[(int) ((i + 1) % window)];
+                        for (int c = 0; c < size; c++) {
+                            row[c] = add(row[c], next[c]);
                         }
                     }
                 }
             }
+
+            long[] matrix = new long[size * size];
+            for (int r = 0; r < size; r++) {
+                System.arraycopy(coefficients[(int) ((a + r) % window)], 0, matrix, r * size, size);
+            }
+            return matrix;
         }
 
-        // Memorizza la lista di decodifiche trovate per la sottostringa corrente
-        memo.put(key, sequences);
-        return sequences;
+        long[] multiply(long[] left, long[] right) {
+            long[] result = new long[size * size];
+            for (int r = 0; r < size; r++) {
+                for (int k = 0; k < size; k++) {
+                    long value = left[r * size + k];
+                    if (value == 0) {
+                        continue;
+                    }
+                    for (int c = 0; c < size; c++) {
+                        result[r * size + c] = add(result[r * size + c], times(value, right[k * size + c]));
+                    }
+                }
+            }
+            return result;
+        }
+
+        // Senza modulo i conti saturano a -1, che indica un valore oltre
+        // Long.MAX_VALUE: i valori veri non sono mai negativi. Le colonne che
+        // alla fine non servono, o che moltiplicano zero, possono così
+        // traboccare senza far fallire un conteggio che sta in un long.
+        private long add(long a, long b) {
+            if (modulus != 0) {
+                return (a + b) % modulus;
+            }
+            if (a < 0 || b < 0) {
+                return -1;
+            }
+            long sum = a + b;
+            return sum < 0 ? -1 : sum;
+        }
+
+        private long times(long a, long b) {
+            if (modulus != 0) {
+                return a * b % modulus;
+            }
+            if (a == 0 || b == 0) {
+                return 0;
+            }
+            if (a < 0 || b < 0) {
+                return -1;
+            }
+            long product = a * b;
+            return Math.multiplyHigh(a, b) != 0 || product < 0 ? -1 : product;
+        }
     }
 
     // Restituisce la lunghezza massima dei prefissi presenti nella huuffmanMap
     private static int getMaxPrefixLength() {
-        int maxLength = 0;
-        for (String key : huffmanMap.keySet()) {
-            int length = key.length();
-            if (length > maxLength) {
-                maxLength = length;
-            }
-        }
-        return maxLength; // in questo caso è 4, ma può variare a seconda della mappa
+        return DECODER.maxLength(); // in questo caso è 4, ma può variare a seconda della mappa
     }
 
     // stampa le sequenze decodificate
@@ -8,192 +8,3274 @@
  * Considerando n nodi e m archi, la complessità dell'algoritmo è la seguente:
  * 
  * Le operazioni di caricamento del grafo sono in O(n + m).
+ * Il file è letto a blocchi di byte da `GraphLoader`, che interpreta i
+ * numeri senza creare stringhe e accetta qualsiasi spaziatura; i file grandi
+ * possono essere divisi in regioni lette in parallelo. Con `--snapshot` il
+ * grafo CSR viene salvato in <file>.bin e ricaricato da lì copiando gli
+ * array in blocco.
+ * Il grafo è salvato in formato CSR: per ogni nodo l'indice del primo arco
+ * uscente, e per ogni arco destinazione e tempo di percorrenza in array
+ * primitivi. Il `Graph.Builder` raccoglie gli archi e li ordina per nodo di
+ * partenza con un counting sort in O(n + m); la lettura di un arco durante
+ * Dijkstra è un accesso ad array, senza chiavi stringa né boxing.
  * Le operazioni di inizializzazione degli array sono in O(n).
- * Le operazioni sulla coda sono in O(log n) poiché la coda è una PriorityQueue
- * che è implementata con un heap binario.
+ * Le operazioni sulla coda sono in O(log n) poiché la coda è un heap binario
+ * indicizzato: ogni nodo sa la sua posizione nello heap, quindi quando il
+ * tempo di un nodo in coda migliora la sua chiave viene diminuita
+ * (decrease-key) e lo heap resta valido. Ogni nodo viene estratto una volta.
+ * In alternativa si possono usare un heap 4-ario, più basso e più amico
+ * della cache, o un radix heap, che con pesi interi sposta ogni nodo tra
+ * pochi bucket; `--bench` li confronta su grafi casuali.
  * 
  * La ricerca del cammino minimo è basato sull'algoritmo di Dijkstra
  * e ha costo O((n + m) * log n).
+ * Per molte query sullo stesso grafo `QueryEngine` risponde a coppie
+ * (sorgente, destinazione) fermandosi quando la destinazione è definitiva;
+ * gli array della ricerca sono riusati per thread e marcati con un numero di
+ * generazione, quindi una query non paga l'inizializzazione in O(n), e un
+ * batch di query è diviso tra i thread di un ForkJoinPool.
+ * Su grafi statici `ContractionHierarchy` precalcola una gerarchia di
+ * contrazione con le attese incluse nei costi degli archi, salvata in
+ * <file>.ch insieme a dimensione e data di modifica del file, modello delle
+ * attese e CRC, e ricostruita se non corrispondono; una query bidirezionale
+ * visita allora solo una piccola parte del grafo e restituisce lo stesso
+ * tempo di Dijkstra e lo stesso percorso, tranne quando più percorsi hanno
+ * lo stesso tempo minimo: in quel caso `--ch` può stamparne un altro.
+ * `DeltaStepping` calcola l'albero dei cammini minimi da una sorgente
+ * usando più core: i bucket di larghezza delta sono elaborati in ordine e
+ * i rilassamenti di un bucket sono eseguiti in parallelo su un ForkJoinPool.
+ * Le attese sono un `AttesaModel`: fisse per nodo (5.0, o random estratte
+ * una volta dal seed) oppure lineari a tratti nell'istante di arrivo, in
+ * array primitivi; il ciclo di Dijkstra non fa che leggerle, quindi query
+ * ripetute o parallele danno sempre lo stesso risultato; ogni ricerca legge il
+ * modello una volta, e con attese fisse accede direttamente all'array.
+ * Gerarchia di contrazione, istantanee e aggiornamento delle attese
+ * richiedono attese fisse, e con gli altri modelli lanciano
+ * IllegalStateException.
+ * Con `--attesa piecewise` Dijkstra usa attese a tratti casuali su un grafo
+ * casuale ed è confrontato con Bellman-Ford, che non suppone definitivi i
+ * nodi estratti.
+ * Archi e attese si possono aggiornare sul posto; `DynamicShortestPaths`
+ * ripara allora solo la parte dell'albero dei cammini minimi coinvolta.
+ * Ogni aggiornamento incrementa la versione del grafo, e `RouteCache` tiene
+ * i risultati recenti e gli alberi delle sorgenti più richieste solo per la
+ * versione con cui sono stati calcolati.
+ * Dijkstra e `QueryEngine` contano rilassamenti, inserimenti nella coda e
+ * nodi definitivi, che con decrease-key sono anche le estrazioni, in
+ * variabili locali e li pubblicano in `Metrics` alla fine di ogni ricerca;
+ * lettura, costruzione e query emettono eventi JFR.
  * La stampa del cammino minimo è in O(n).
  * 
  * La complessità temporale totale è quindi O((n + m) * log n).
  * 
  */
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 public class Esercizio3 {
-    static Random random = new Random(970758);
+    // seed delle attese random, numero di matricola
+    static final long SEED = 970758;
 
-    // usa numeri random come attesa per ogni nodo con seed numero di matricola
+    // usa numeri random come attesa per ogni nodo, estratti una volta sola
+    // alla costruzione del grafo con seed numero di matricola
     // static boolean useRandom = true;
 
     // usa 5.0 come attesa per ogni nodo
     static boolean useRandom = false;
 
-    static class Node {
-        public final int id;
-        public double attesa = 5.0;
-        public final List<Node> lista_di_adiacenza = new ArrayList<>();
+    // attesa di ogni nodo quando useRandom è falso
+    static final double ATTESA = 5.0;
 
-        Node(int key) {
-            this.id = key;
+    // identifica le attese assegnate da Graph.Builder: il seed se sono
+    // random, altrimenti i bit dell'attesa costante, negati per non
+    // confonderli con un seed. Le istantanee lo salvano nell'intestazione e
+    // vengono scartate se il modello è cambiato.
+    static long attesaTag() {
+        return useRandom ? SEED : ~Double.doubleToLongBits(ATTESA);
+    }
+
+    // costruisce il grafo, i primi due valori sono il numero di nodi e di archi
+    private static Graph buildGraph(String filename) {
+        try {
+            return new GraphLoader().load(filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // caricatore a flusso del grafo: legge il file a blocchi di byte e
+    // interpreta i numeri a mano, separati da spazi, tabulazioni o a capo
+    // in qualsiasi quantità, senza creare stringhe per riga o per valore.
+    // Con parallelism > 1 i file grandi sono divisi in regioni che iniziano
+    // a inizio riga, interpretate in parallelo; in questo caso ogni riga deve
+    // contenere un arco intero, come in grafo.txt.
+    static class GraphLoader {
+        static final int CHUNK_SIZE = 1 << 20;
+
+        // dimensione minima di una regione letta in parallelo
+        static final long MIN_REGION = 8L << 20;
+
+        private final int parallelism;
+
+        private long edges;
+        private long bytes;
+        private long elapsedNanos;
+
+        GraphLoader() {
+            this(1);
+        }
+
+        GraphLoader(int parallelism) {
+            this.parallelism = Math.max(1, parallelism);
+        }
+
+        Graph load(String filename) throws IOException {
+            long begin = System.nanoTime();
+            Metrics.ParseEvent event = Metrics.beginParse();
+
+            try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+                long size = channel.size();
+                int regions = (int) Math.max(1, Math.min(parallelism, size / MIN_REGION));
+
+                // inizio di ogni regione: il primo byte dopo un a capo
+                long[] starts = new long[regions + 1];
+                starts[regions] = size;
+                for (int r = 1; r < regions; r++) {
+                    starts[r] = lineStart(channel, Math.max(starts[r - 1], size / regions * r));
+                }
+
+                EdgeParser[] parsers = new EdgeParser[regions];
+                if (regions == 1) {
+                    parsers[0] = new EdgeParser(true).parse(channel, 0, size);
+                } else {
+                    List<Callable<EdgeParser>> tasks = new ArrayList<>();
+                    for (int r = 0; r < regions; r++) {
+                        boolean header = r == 0;
+                        long from = starts[r];
+                        long to = starts[r + 1];
+                        tasks.add(() -> new EdgeParser(header).parse(channel, from, to));
+                    }
+                    try {
+                        List<Future<EdgeParser>> results = ForkJoinPool.commonPool().invokeAll(tasks);
+                        for (int r = 0; r < regions; r++) {
+                            parsers[r] = results.get(r).get();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Caricamento interrotto", e);
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof RuntimeException) {
+                            throw (RuntimeException) e.getCause();
+                        }
+                        throw new IOException(e.getCause());
+                    }
+                }
+
+                EdgeParser first = parsers[0];
+                if (first.header < 2) {
+                    throw new NumberFormatException("Mancano il numero di nodi e di archi");
+                }
+
+                edges = 0;
+                for (EdgeParser parser : parsers) {
+                    edges += parser.count;
+                }
+                Graph.Builder builder = new Graph.Builder(first.numNodes, (int) Math.min(edges, Integer.MAX_VALUE));
+                for (EdgeParser parser : parsers) {
+                    for (int e = 0; e < parser.count; e++) {
+                        builder.insertEdge(parser.sources[e], parser.targets[e], parser.weights[e]);
+                    }
+                }
+                bytes = size;
+
+                Graph graph = builder.build();
+                this.elapsedNanos = System.nanoTime() - begin;
+                Metrics.end(event, filename, bytes, edges);
+                return graph;
+            }
+        }
+
+        // posizione del primo byte dopo il primo a capo da position in poi
+        private static long lineStart(FileChannel channel, long position) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            long size = channel.size();
+            while (position < size) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        return position + i + 1;
+                    }
+                }
+                position += read;
+            }
+            return size;
+        }
+
+        // archi letti dall'ultimo caricamento
+        long edges() {
+            return edges;
+        }
+
+        long bytes() {
+            return bytes;
+        }
+
+        long elapsedNanos() {
+            return elapsedNanos;
+        }
+
+        // throughput dell'ultimo caricamento, costruzione del grafo compresa
+        double edgesPerSecond() {
+            return elapsedNanos == 0 ? 0 : edges * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("GraphLoader [edges=%d, bytes=%d, ms=%.1f, edges/s=%.0f]",
+                    edges, bytes, elapsedNanos / 1e6, edgesPerSecond());
+        }
+    }
+
+    // interpreta i valori di una regione del file: se header è vero i primi
+    // due sono il numero di nodi e di archi, poi ogni terna è un arco
+    private static class EdgeParser {
+        // potenze di 10 rappresentabili esattamente come double
+        private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+                1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+        int header; // valori dell'intestazione ancora da leggere, poi letti
+        int numNodes;
+        int[] sources = new int[1024];
+        int[] targets = new int[1024];
+        double[] weights = new double[1024];
+        int count;
+
+        // stato del parser, conservato tra un blocco e l'altro
+        private int field; // valori già letti dell'arco corrente
+        private long position; // posizione nel file del byte corrente
+        private byte[] token = new byte[32];
+        private int tokenLength;
+        private long mantissa;
+        private boolean overflow; // mantissa oltre 18 cifre
+        private int fractionDigits;
+        private boolean dot;
+        private int exponent;
+        private boolean inExponent;
+        private boolean exponentNegative;
+        private boolean negative;
+
+        EdgeParser(boolean header) {
+            this.header = header ? 0 : 2;
+        }
+
+        EdgeParser parse(FileChannel channel, long from, long to) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(GraphLoader.CHUNK_SIZE);
+            position = from;
+            while (position < to) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), to - position));
+                int read = channel.read(buffer, position);
+                if (read <= 0) {
+                    break;
+                }
+                consume(buffer.array(), read);
+            }
+
+            // a fine regione si chiude l'ultimo valore
+            if (tokenLength > 0) {
+                endToken();
+            }
+            if (field != 0) {
+                throw new NumberFormatException("Posizione " + position + ": arco incompleto");
+            }
+            return this;
+        }
+
+        // interpreta un blocco di byte, O(length)
+        private void consume(byte[] chunk, int length) {
+            for (int i = 0; i < length; i++, position++) {
+                byte c = chunk[i];
+
+                if (c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f') {
+                    if (tokenLength > 0) {
+                        endToken();
+                    }
+                    continue;
+                }
+
+                if (tokenLength == token.length) {
+                    token = Arrays.copyOf(token, 2 * tokenLength);
+                }
+                token[tokenLength++] = c;
+
+                if (c >= '0' && c <= '9') {
+                    if (inExponent) {
+                        exponent = Math.min(exponent * 10 + (c - '0'), 100000);
+                    } else {
+                        if (mantissa < 100_000_000_000_000_000L) {
+                            mantissa = mantissa * 10 + (c - '0');
+                        } else {
+                            overflow = true;
+                        }
+                        if (dot) {
+                            fractionDigits++;
+                        }
+                    }
+                } else if (c == '.' && !dot && !inExponent) {
+                    dot = true;
+                } else if ((c == 'e' || c == 'E') && !inExponent && tokenLength > 1) {
+                    inExponent = true;
+                } else if (c == '-' || c == '+') {
+                    byte previous = tokenLength > 1 ? token[tokenLength - 2] : 0;
+                    if (tokenLength == 1) {
+                        negative = c == '-';
+                    } else if (previous == 'e' || previous == 'E') {
+                        exponentNegative = c == '-';
+                    } else {
+                        throw invalid("segno fuori posto");
+                    }
+                } else {
+                    throw invalid("carattere non valido '" + (char) c + "'");
+                }
+            }
+        }
+
+        // registra un valore letto: nell'arco i primi due sono i nodi, il
+        // terzo il tempo di percorrenza
+        private void endToken() {
+            byte last = token[tokenLength - 1];
+            if (last < '0' || last > '9') {
+                throw invalid("numero non valido");
+            }
+
+            if (header < 2 || field < 2) {
+                if (dot || inExponent || overflow || mantissa > Integer.MAX_VALUE) {
+                    throw invalid("intero non valido");
+                }
+                int value = negative ? -(int) mantissa : (int) mantissa;
+
+                if (header == 0) {
+                    numNodes = value;
+                    header = 1;
+                } else if (header == 1) {
+                    header = 2;
+                } else if (field == 0) {
+                    grow();
+                    sources[count] = value;
+                    field = 1;
+                } else {
+                    targets[count] = value;
+                    field = 2;
+                }
+            } else {
+                weights[count++] = parseDouble();
+                field = 0;
+            }
+
+            tokenLength = 0;
+            mantissa = 0;
+            overflow = false;
+            fractionDigits = 0;
+            dot = false;
+            exponent = 0;
+            inExponent = false;
+            exponentNegative = false;
+            negative = false;
+        }
+
+        // un double con al più 15 cifre e pochi decimali è la mantissa intera
+        // divisa (o moltiplicata) per una potenza di 10 esatta: un solo
+        // arrotondamento, quindi lo stesso risultato di Double.parseDouble,
+        // a cui si ricorre negli altri casi
+        private double parseDouble() {
+            int scale = (exponentNegative ? -exponent : exponent) - fractionDigits;
+            if (!overflow && mantissa < (1L << 53) && scale >= -22 && scale <= 22) {
+                double value = scale >= 0 ? mantissa * POWERS_OF_TEN[scale] : mantissa / POWERS_OF_TEN[-scale];
+                return negative ? -value : value;
+            }
+            try {
+                return Double.parseDouble(new String(token, 0, tokenLength, StandardCharsets.ISO_8859_1));
+            } catch (NumberFormatException e) {
+                throw invalid("numero non valido");
+            }
+        }
+
+        private void grow() {
+            if (count == sources.length) {
+                sources = Arrays.copyOf(sources, 2 * count);
+                targets = Arrays.copyOf(targets, 2 * count);
+                weights = Arrays.copyOf(weights, 2 * count);
+            }
+        }
+
+        private NumberFormatException invalid(String message) {
+            return new NumberFormatException("Posizione " + position + ": " + message);
+        }
+    }
+
+    // istantanea binaria del grafo CSR, scritta accanto al file di input con
+    // estensione .bin. L'intestazione di 48 byte contiene numero magico,
+    // versione, numero di nodi e di archi, dimensione e data di modifica del
+    // file di origine, CRC32 dei dati e attesaTag(); seguono offsets e targets come interi
+    // e weights e attese come double, little endian. Al caricamento le
+    // regioni vengono mappate e copiate in blocco negli array del grafo, che
+    // il ciclo di Dijkstra legge direttamente.
+    static class GraphSnapshot {
+        static final int MAGIC = 0x45334753; // "E3GS"
+        static final int VERSION = 2;
+        static final int HEADER_SIZE = 48;
+        static final String EXTENSION = ".bin";
+
+        // le mappature sono limitate a 2 GB, gli array si copiano a pezzi
+        private static final int MAP_SIZE = 1 << 30;
+
+        // scrive l'istantanea del grafo costruito a partire da source
+        static void write(Graph graph, String snapshot, String source) throws IOException {
+            Path sourcePath = Paths.get(source);
+            CRC32 crc = new CRC32();
+
+            try (FileChannel channel = FileChannel.open(Paths.get(snapshot), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+                channel.position(HEADER_SIZE);
+                buffer.clear();
+                for (int v : graph.offsets) {
+                    if (buffer.remaining() < 8) {
+                        flush(channel, buffer, crc);
+                    }
+                    buffer.putInt(v);
+                }
+                for (int v : graph.targets) {
+                    if (buffer.remaining() < 8) {
+                        flush(channel, buffer, crc);
+                    }
+                    buffer.putInt(v);
+                }
+                for (double v : graph.weights) {
+                    if (buffer.remaining() < 8) {
+                        flush(channel, buffer, crc);
+                    }
+                    buffer.putDouble(v);
+                }
+                for (double v : graph.fixedAttese("L'istantanea del grafo")) {
+                    if (buffer.remaining() < 8) {
+                        flush(channel, buffer, crc);
+                    }
+                    buffer.putDouble(v);
+                }
+                flush(channel, buffer, crc);
+
+                // l'intestazione si scrive per ultima, quando il CRC è noto
+                buffer.clear();
+                buffer.putInt(MAGIC).putInt(VERSION).putInt(graph.size()).putInt(graph.edgeCount());
+                buffer.putLong(Files.size(sourcePath));
+                buffer.putLong(Files.getLastModifiedTime(sourcePath).toMillis());
+                buffer.putLong(crc.getValue());
+                buffer.putLong(attesaTag());
+                buffer.flip();
+                channel.write(buffer, 0);
+            }
+        }
+
+        private static void flush(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+            buffer.flip();
+            crc.update(buffer);
+            buffer.rewind();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        // legge l'istantanea; restituisce null se manca, se è di un'altra
+        // versione, se il file di origine è cambiato dopo la scrittura o se le
+        // attese sono state calcolate con un altro modello
+        static Graph load(String snapshot, String source) throws IOException {
+            Path snapshotPath = Paths.get(snapshot);
+            Path sourcePath = Paths.get(source);
+            if (!Files.exists(snapshotPath)) {
+                return null;
+            }
+
+            try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                channel.read(header, 0);
+                header.flip();
+                if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                    return null;
+                }
+                Metrics.ParseEvent event = Metrics.beginParse();
+
+                int n = header.getInt();
+                int m = header.getInt();
+                long sourceSize = header.getLong();
+                long sourceModified = header.getLong();
+                header.getLong(); // CRC, controllato da verify
+                long tag = header.getLong();
+
+                if (Files.exists(sourcePath) && (sourceSize != Files.size(sourcePath)
+                        || sourceModified != Files.getLastModifiedTime(sourcePath).toMillis())) {
+                    return null;
+                }
+                if (tag != attesaTag()) {
+                    return null;
+                }
+                if (channel.size() != HEADER_SIZE + 4L * (n + 1 + m) + 8L * (m + n)) {
+                    return null;
+                }
+
+                long offset = HEADER_SIZE;
+                int[] offsets = new int[n + 1];
+                offset = readInts(channel, offset, offsets);
+                int[] targets = new int[m];
+                offset = readInts(channel, offset, targets);
+                double[] weights = new double[m];
+                offset = readDoubles(channel, offset, weights);
+                double[] attese = new double[n];
+                readDoubles(channel, offset, attese);
+
+                Metrics.end(event, snapshot, channel.size(), m);
+                return new Graph(offsets, targets, weights, attese);
+            }
+        }
+
+        private static long readInts(FileChannel channel, long offset, int[] values) throws IOException {
+            for (int done = 0; done < values.length;) {
+                int count = Math.min(values.length - done, MAP_SIZE / 4);
+                channel.map(FileChannel.MapMode.READ_ONLY, offset, 4L * count).order(ByteOrder.LITTLE_ENDIAN)
+                        .asIntBuffer().get(values, done, count);
+                done += count;
+                offset += 4L * count;
+            }
+            return offset;
+        }
+
+        private static long readDoubles(FileChannel channel, long offset, double[] values) throws IOException {
+            for (int done = 0; done < values.length;) {
+                int count = Math.min(values.length - done, MAP_SIZE / 8);
+                channel.map(FileChannel.MapMode.READ_ONLY, offset, 8L * count).order(ByteOrder.LITTLE_ENDIAN)
+                        .asDoubleBuffer().get(values, done, count);
+                done += count;
+                offset += 8L * count;
+            }
+            return offset;
+        }
+
+        // ricalcola il CRC32 dei dati e lo confronta con quello
+        // dell'intestazione, O(n + m)
+        static boolean verify(String snapshot) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(snapshot), StandardOpenOption.READ)) {
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                    return false;
+                }
+
+                CRC32 crc = new CRC32();
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+                channel.position(HEADER_SIZE);
+                while (channel.read(buffer) > 0) {
+                    buffer.flip();
+                    crc.update(buffer);
+                    buffer.clear();
+                }
+                return crc.getValue() == header.getLong(32);
+            }
+        }
+
+        // usa l'istantanea di source se è valida, altrimenti legge source,
+        // in parallelo con parallelism thread, e scrive una nuova istantanea
+        static Graph loadOrBuild(String source, int parallelism) throws IOException {
+            String snapshot = source + EXTENSION;
+            Graph graph = load(snapshot, source);
+            if (graph != null) {
+                return graph;
+            }
+
+            graph = new GraphLoader(parallelism).load(source);
+            write(graph, snapshot, source);
+            return graph;
+        }
+    }
+
+    // grafo in formato CSR (compressed sparse row): gli archi uscenti dal nodo
+    // u sono quelli da offsets[u] a offsets[u + 1] - 1, con destinazione in
+    // targets e tempo di percorrenza in weights. Non ci sono oggetti per nodo
+    // o per arco, e la lettura di un arco è un accesso ad array.
+    static class Graph {
+
+        private final int[] offsets; // lunghezza numNodes + 1
+        private final int[] targets;
+        private final double[] weights;
+        private volatile AttesaModel attesaModel;
+
+        // cresce a ogni aggiornamento di archi o attese; un solo thread
+        // aggiorna il grafo, gli altri leggono la versione
+        private volatile long version;
+
+        private Graph(int[] offsets, int[] targets, double[] weights, double[] attese) {
+            this.offsets = offsets;
+            this.targets = targets;
+            this.weights = weights;
+            this.attesaModel = new FixedAttesa(attese);
+        }
+
+        int size() {
+            return offsets.length - 1;
+        }
+
+        int edgeCount() {
+            return targets.length;
+        }
+
+        long version() {
+            return version;
+        }
+
+        // primo arco uscente dal nodo
+        int firstEdge(int nodeID) {
+            return offsets[nodeID];
+        }
+
+        // arco successivo all'ultimo arco uscente dal nodo
+        int endEdge(int nodeID) {
+            return offsets[nodeID + 1];
+        }
+
+        int target(int edge) {
+            return targets[edge];
+        }
+
+        double weight(int edge) {
+            return weights[edge];
+        }
+
+        // stampa il grafo
+        void printGraph() { // O(n + m)
+            for (int i = 0; i < size(); i++) {
+                StringBuilder sb = new StringBuilder();
+                sb.append("Node [id=").append(i).append(", attesa=").append(attesaModel.partenza(i, 0)).append(" nodi adiacenti=");
+                for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+                    sb.append(targets[e]).append(" ");
+                }
+                System.out.println(sb.append("]"));
+            }
+        }
+
+        // restituisce l'istante di partenza dal nodo i arrivando al tempo t
+        double attesa(int i, double tempo_t) {
+            return attesaModel.partenza(i, tempo_t);
+        }
+
+        AttesaModel attesaModel() {
+            return attesaModel;
+        }
+
+        // sostituisce il modello delle attese, che deve coprire tutti i nodi
+        void setAttesaModel(AttesaModel attesaModel) {
+            if (attesaModel.size() != size()) {
+                throw new IllegalArgumentException("Il modello delle attese ha " + attesaModel.size()
+                        + " nodi invece di " + size());
+            }
+            this.attesaModel = attesaModel;
+            version++;
+        }
+
+        // attese fisse di ogni nodo, per gli usi che le includono nel costo
+        // degli archi, le salvano o le cambiano: con un modello che dipende
+        // dall'istante di arrivo uso viene rifiutato
+        double[] fixedAttese(String uso) {
+            AttesaModel model = attesaModel;
+            if (!(model instanceof FixedAttesa)) {
+                throw new IllegalStateException(uso + " richiede attese fisse per nodo, il modello è "
+                        + model.getClass().getSimpleName());
+            }
+            return ((FixedAttesa) model).attese;
+        }
+
+        // cambia il tempo di percorrenza del primo arco da nodo1 a nodo2 e ne
+        // restituisce l'indice; gli aggiornamenti non sono sincronizzati con
+        // le ricerche in corso sullo stesso grafo
+        int updateEdge(int id_nodo1, int id_nodo2, double tempo_di_percorrenza) {
+            if (!(tempo_di_percorrenza >= 0)) {
+                throw new IllegalArgumentException("Tempo di percorrenza non valido: " + tempo_di_percorrenza);
+            }
+            for (int e = offsets[id_nodo1]; e < offsets[id_nodo1 + 1]; e++) {
+                if (targets[e] == id_nodo2) {
+                    weights[e] = tempo_di_percorrenza;
+                    version++;
+                    return e;
+                }
+            }
+            throw new IllegalArgumentException("Arco " + id_nodo1 + "-" + id_nodo2 + " inesistente");
+        }
+
+        // cambia l'attesa fissa del nodo
+        void updateAttesa(int nodeID, double attesa) {
+            if (!(attesa >= 0)) {
+                throw new IllegalArgumentException("Attesa non valida: " + attesa);
+            }
+            fixedAttese("L'aggiornamento di un'attesa")[nodeID] = attesa;
+            version++;
+        }
+
+        // restituisce il tempo di percorrenza tra i nodi nodo1 e nodo2,
+        // scorrendo gli archi uscenti da nodo1 in O(grado)
+        double getEdge(int id_nodo1, int id_nodo2) {
+            for (int e = offsets[id_nodo1]; e < offsets[id_nodo1 + 1]; e++) {
+                if (targets[e] == id_nodo2) {
+                    return weights[e];
+                }
+            }
+            throw new IllegalArgumentException("Arco " + id_nodo1 + "-" + id_nodo2 + " inesistente");
+        }
+
+        // raccoglie gli archi in array primitivi e costruisce il grafo CSR con
+        // un counting sort sul nodo di partenza, in O(n + m)
+        static class Builder {
+            private final int numNodes;
+            private int[] sources;
+            private int[] targets;
+            private double[] weights;
+            private int numEdges;
+
+            Builder(int numNodes, int expectedEdges) {
+                this.numNodes = numNodes;
+                this.sources = new int[Math.max(expectedEdges, 1)];
+                this.targets = new int[Math.max(expectedEdges, 1)];
+                this.weights = new double[Math.max(expectedEdges, 1)];
+            }
+
+            // inserisce un arco tra due nodi
+            Builder insertEdge(int id1, int id2, double tempo_di_percorrenza) {
+                if (id1 < 0 || id1 >= numNodes || id2 < 0 || id2 >= numNodes) {
+                    throw new IllegalArgumentException("Arco " + id1 + "-" + id2 + " con nodi inesistenti");
+                }
+
+                if (numEdges == sources.length) {
+                    sources = Arrays.copyOf(sources, 2 * numEdges);
+                    targets = Arrays.copyOf(targets, 2 * numEdges);
+                    weights = Arrays.copyOf(weights, 2 * numEdges);
+                }
+
+                sources[numEdges] = id1;
+                targets[numEdges] = id2;
+                weights[numEdges++] = tempo_di_percorrenza;
+                return this;
+            }
+
+            Graph build() {
+                Metrics.BuildEvent event = Metrics.beginBuild();
+                int[] offsets = new int[numNodes + 1];
+                for (int e = 0; e < numEdges; e++) {
+                    offsets[sources[e] + 1]++;
+                }
+                for (int i = 0; i < numNodes; i++) {
+                    offsets[i + 1] += offsets[i];
+                }
+
+                // ordinamento stabile: gli archi di un nodo restano nell'ordine
+                // di inserimento, come nelle vecchie liste di adiacenza
+                int[] fill = Arrays.copyOf(offsets, numNodes);
+                int[] csrTargets = new int[numEdges];
+                double[] csrWeights = new double[numEdges];
+                for (int e = 0; e < numEdges; e++) {
+                    int position = fill[sources[e]]++;
+                    csrTargets[position] = targets[e];
+                    csrWeights[position] = weights[e];
+                }
+
+                FixedAttesa attese = useRandom ? FixedAttesa.random(numNodes, SEED) : FixedAttesa.constant(numNodes, ATTESA);
+                Graph graph = new Graph(offsets, csrTargets, csrWeights, attese.attese);
+                Metrics.end(event, "graph", numEdges);
+                return graph;
+            }
+        }
+    }
+
+    // modello dei tempi di attesa nei nodi: dato l'istante di arrivo
+    // restituisce quello di partenza. L'attesa non è mai negativa, e partire
+    // non conviene mai arrivando più tardi (partenza non decrescente), quindi
+    // Dijkstra resta corretto. I modelli sono immutabili o aggiornati da un
+    // solo thread, e le query concorrenti li leggono senza lock.
+    interface AttesaModel {
+        double partenza(int node, double tempo_t);
+
+        // attesa massima su tutti i nodi e gli istanti
+        double maxAttesa();
+
+        int size();
+    }
+
+    // attesa fissa per nodo, letta da un array
+    static class FixedAttesa implements AttesaModel {
+        final double[] attese;
+
+        FixedAttesa(double[] attese) {
+            this.attese = attese;
+        }
+
+        // le attese del modello se sono fisse, altrimenti null: i cicli di
+        // ricerca leggono il modello una volta e con attese fisse accedono
+        // direttamente all'array, senza chiamate di interfaccia
+        static double[] arrayOf(AttesaModel model) {
+            return model instanceof FixedAttesa ? ((FixedAttesa) model).attese : null;
+        }
+
+        // la stessa attesa per tutti i nodi
+        static FixedAttesa constant(int numNodes, double attesa) {
+            double[] attese = new double[numNodes];
+            Arrays.fill(attese, attesa);
+            return new FixedAttesa(attese);
+        }
+
+        // attese random in [0, 10), estratte in ordine di nodo dal seed
+        static FixedAttesa random(int numNodes, long seed) {
+            Random rnd = new Random(seed);
+            double[] attese = new double[numNodes];
+            for (int i = 0; i < numNodes; i++) {
+                attese[i] = rnd.nextDouble() * 10;
+            }
+            return new FixedAttesa(attese);
+        }
+
+        @Override
+        public double partenza(int node, double tempo_t) {
+            return tempo_t + attese[node];
+        }
+
+        @Override
+        public double maxAttesa() {
+            double max = 0;
+            for (double attesa : attese) {
+                max = Math.max(max, attesa);
+            }
+            return max;
+        }
+
+        @Override
+        public int size() {
+            return attese.length;
+        }
+    }
+
+    // attesa che dipende dall'istante di arrivo, lineare a tratti: i punti
+    // del nodo v sono (times[k], waits[k]) per k da offsets[v] a
+    // offsets[v + 1] - 1, in ordine di tempo. Prima del primo punto e dopo
+    // l'ultimo l'attesa è costante, un nodo senza punti non ha attesa. Tra due
+    // punti la pendenza deve essere almeno -1: l'attesa può calare al più
+    // quanto passa il tempo, così chi arriva dopo non parte prima.
+    static class PiecewiseAttesa implements AttesaModel {
+        private final int[] offsets;
+        private final double[] times;
+        private final double[] waits;
+        private final double maxAttesa;
+
+        PiecewiseAttesa(int[] offsets, double[] times, double[] waits) {
+            this.offsets = offsets;
+            this.times = times;
+            this.waits = waits;
+
+            double max = 0;
+            for (int v = 0; v + 1 < offsets.length; v++) {
+                for (int k = offsets[v]; k < offsets[v + 1]; k++) {
+                    if (!(waits[k] >= 0)) {
+                        throw new IllegalArgumentException("Attesa negativa nel nodo " + v + ": " + waits[k]);
+                    }
+                    max = Math.max(max, waits[k]);
+                    if (k == offsets[v]) {
+                        continue;
+                    }
+                    if (!(times[k] > times[k - 1])) {
+                        throw new IllegalArgumentException("Tempi non crescenti nel nodo " + v);
+                    }
+                    if (waits[k] - waits[k - 1] < -(times[k] - times[k - 1])) {
+                        throw new IllegalArgumentException("Nel nodo " + v + " l'attesa cala più in fretta del tempo");
+                    }
+                }
+            }
+            this.maxAttesa = max;
+        }
+
+        // points punti per nodo in [0, horizon), con attese in [0, 10) che
+        // rispettano il vincolo sulla pendenza, estratti dal seed
+        static PiecewiseAttesa random(int numNodes, int points, double horizon, long seed) {
+            Random rnd = new Random(seed);
+            int[] offsets = new int[numNodes + 1];
+            double[] times = new double[numNodes * points];
+            double[] waits = new double[numNodes * points];
+
+            double step = horizon / points;
+            for (int v = 0; v < numNodes; v++) {
+                offsets[v + 1] = offsets[v] + points;
+                for (int k = offsets[v]; k < offsets[v + 1]; k++) {
+                    int index = k - offsets[v];
+                    times[k] = step * (index + rnd.nextDouble() * 0.5);
+                    waits[k] = rnd.nextDouble() * 10;
+                    if (index > 0) {
+                        // l'attesa minima consentita, arrotondata per eccesso
+                        // finché il controllo del costruttore la accetta
+                        double gap = times[k] - times[k - 1];
+                        if (waits[k] < waits[k - 1] - gap) {
+                            waits[k] = waits[k - 1] - gap;
+                            while (waits[k] - waits[k - 1] < -gap) {
+                                waits[k] = Math.nextUp(waits[k]);
+                            }
+                        }
+                    }
+                }
+            }
+            return new PiecewiseAttesa(offsets, times, waits);
+        }
+
+        // tratti con la pendenza minima consentita, -1 a meno degli
+        // arrotondamenti: chi vi arriva più tardi parte allo stesso istante
+        int steepSegments() {
+            int count = 0;
+            for (int v = 0; v + 1 < offsets.length; v++) {
+                for (int k = offsets[v] + 1; k < offsets[v + 1]; k++) {
+                    if (waits[k] - waits[k - 1] < -(times[k] - times[k - 1]) + 1e-9) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        // attesa arrivando al tempo t, con ricerca binaria del tratto
+        double attesa(int node, double tempo_t) {
+            int lo = offsets[node];
+            int hi = offsets[node + 1] - 1;
+            if (hi < lo) {
+                return 0;
+            }
+            if (tempo_t <= times[lo]) {
+                return waits[lo];
+            }
+            if (tempo_t >= times[hi]) {
+                return waits[hi];
+            }
+
+            // times[lo] < t < times[hi]
+            while (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                if (times[mid] <= tempo_t) {
+                    lo = mid;
+                } else {
+                    hi = mid;
+                }
+            }
+            return waits[lo] + (waits[hi] - waits[lo]) * (tempo_t - times[lo]) / (times[hi] - times[lo]);
+        }
+
+        @Override
+        public double partenza(int node, double tempo_t) {
+            return tempo_t + attesa(node, tempo_t);
+        }
+
+        @Override
+        public double maxAttesa() {
+            return maxAttesa;
+        }
+
+        @Override
+        public int size() {
+            return offsets.length - 1;
+        }
+    }
+
+    // coda di priorità sui nodi con chiave double e decrease-key
+    interface NodeQueue {
+        boolean isEmpty();
+
+        // inserisce il nodo, o ne diminuisce la chiave se è già in coda
+        void push(int node, double key);
+
+        // estrae il nodo con chiave minima
+        int pop();
+
+        // svuota la coda in O(elementi in coda)
+        void clear();
+    }
+
+    // tipi di coda che si possono usare in Dijkstra
+    enum QueueType {
+        BINARY_HEAP, QUATERNARY_HEAP, RADIX;
+
+        NodeQueue create(int numNodes) {
+            switch (this) {
+                case QUATERNARY_HEAP:
+                    return new IndexedHeap(numNodes, 4);
+                case RADIX:
+                    return new RadixQueue(numNodes);
+                default:
+                    return new IndexedHeap(numNodes, 2);
+            }
+        }
+    }
+
+    // heap d-ario indicizzato: per ogni nodo si tiene la posizione nello heap,
+    // quindi decrease-key sposta il nodo verso l'alto in O(log_d n) invece di
+    // lasciare lo heap in uno stato non valido
+    static class IndexedHeap implements NodeQueue {
+        private final int arity;
+        private final int[] heap; // nodi in ordine di heap
+        private final double[] keys; // chiave di ogni nodo
+        private final int[] position; // posizione di ogni nodo nello heap, -1 se assente
+        private int size;
+
+        IndexedHeap(int numNodes, int arity) {
+            this.arity = arity;
+            this.heap = new int[numNodes];
+            this.keys = new double[numNodes];
+            this.position = new int[numNodes];
+            Arrays.fill(position, -1);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        @Override
+        public void push(int node, double key) {
+            int i = position[node];
+            if (i < 0) {
+                i = size++;
+            } else if (key >= keys[node]) {
+                return;
+            }
+            keys[node] = key;
+            siftUp(i, node);
+        }
+
+        // chiave minima, senza estrarre il nodo
+        double minKey() {
+            return keys[heap[0]];
+        }
+
+        @Override
+        public int pop() {
+            int min = heap[0];
+            position[min] = -1;
+
+            int last = heap[--size];
+            if (size > 0) {
+                siftDown(0, last);
+            }
+            return min;
+        }
+
+        @Override
+        public void clear() {
+            for (int i = 0; i < size; i++) {
+                position[heap[i]] = -1;
+            }
+            size = 0;
+        }
+
+        private void siftUp(int i, int node) {
+            double key = keys[node];
+            while (i > 0) {
+                int parent = (i - 1) / arity;
+                if (keys[heap[parent]] <= key) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                position[heap[i]] = i;
+                i = parent;
+            }
+            heap[i] = node;
+            position[node] = i;
+        }
+
+        private void siftDown(int i, int node) {
+            double key = keys[node];
+            while (true) {
+                int first = i * arity + 1;
+                if (first >= size) {
+                    break;
+                }
+
+                int min = first;
+                int end = Math.min(first + arity, size);
+                for (int child = first + 1; child < end; child++) {
+                    if (keys[heap[child]] < keys[heap[min]]) {
+                        min = child;
+                    }
+                }
+
+                if (keys[heap[min]] >= key) {
+                    break;
+                }
+                heap[i] = heap[min];
+                position[heap[i]] = i;
+                i = min;
+            }
+            heap[i] = node;
+            position[node] = i;
+        }
+    }
+
+    // radix heap: coda monotona, cioè le chiavi inserite non sono mai minori
+    // dell'ultima estratta, come in Dijkstra con tempi non negativi. I bit di
+    // un double non negativo sono ordinati come il double, quindi la chiave è
+    // un long e il bucket di un nodo è la posizione del bit più alto in cui la
+    // sua chiave differisce dall'ultima estratta. Ogni nodo cambia bucket al
+    // più 64 volte, e con pesi interi le chiavi hanno pochi bit diversi.
+    static class RadixQueue implements NodeQueue {
+        private static final int BUCKETS = 65;
+
+        private final int[][] buckets = new int[BUCKETS][];
+        private final int[] bucketSize = new int[BUCKETS];
+        private final long[] keys; // chiave di ogni nodo, come bit del double
+        private final int[] bucketOf; // bucket di ogni nodo, -1 se assente
+        private final int[] slot; // posizione di ogni nodo nel suo bucket
+        private long last; // ultima chiave estratta
+        private int size;
+
+        RadixQueue(int numNodes) {
+            this.keys = new long[numNodes];
+            this.bucketOf = new int[numNodes];
+            this.slot = new int[numNodes];
+            Arrays.fill(bucketOf, -1);
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new int[4];
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        @Override
+        public void push(int node, double key) {
+            long bits = Double.doubleToLongBits(key);
+            if (bits < last) {
+                throw new IllegalArgumentException("Chiave " + key + " minore dell'ultima estratta");
+            }
+
+            if (bucketOf[node] >= 0) {
+                if (bits >= keys[node]) {
+                    return;
+                }
+                remove(node);
+            } else {
+                size++;
+            }
+            keys[node] = bits;
+            add(node, bucket(bits));
+        }
+
+        @Override
+        public int pop() {
+            if (bucketSize[0] == 0) {
+                // il primo bucket non vuoto contiene il nuovo minimo: si
+                // ridistribuiscono i suoi nodi rispetto a questo
+                int b = 1;
+                while (bucketSize[b] == 0) {
+                    b++;
+                }
+
+                int[] nodes = buckets[b];
+                long min = Long.MAX_VALUE;
+                for (int i = 0; i < bucketSize[b]; i++) {
+                    min = Math.min(min, keys[nodes[i]]);
+                }
+                last = min;
+
+                int count = bucketSize[b];
+                bucketSize[b] = 0;
+                for (int i = 0; i < count; i++) {
+                    add(nodes[i], bucket(keys[nodes[i]]));
+                }
+            }
+
+            int node = buckets[0][--bucketSize[0]];
+            bucketOf[node] = -1;
+            size--;
+            return node;
+        }
+
+        @Override
+        public void clear() {
+            for (int b = 0; b < BUCKETS; b++) {
+                for (int i = 0; i < bucketSize[b]; i++) {
+                    bucketOf[buckets[b][i]] = -1;
+                }
+                bucketSize[b] = 0;
+            }
+            size = 0;
+            last = 0;
+        }
+
+        private int bucket(long bits) {
+            return bits == last ? 0 : 64 - Long.numberOfLeadingZeros(bits ^ last);
+        }
+
+        private void add(int node, int b) {
+            if (bucketSize[b] == buckets[b].length) {
+                buckets[b] = Arrays.copyOf(buckets[b], 2 * bucketSize[b]);
+            }
+            slot[node] = bucketSize[b];
+            bucketOf[node] = b;
+            buckets[b][bucketSize[b]++] = node;
+        }
+
+        private void remove(int node) {
+            int b = bucketOf[node];
+            int moved = buckets[b][--bucketSize[b]];
+            buckets[b][slot[node]] = moved;
+            slot[moved] = slot[node];
+        }
+    }
+
+    // Dijkstra dalla sorgente: riempie tempo e percorso (-1 per la sorgente e
+    // per i nodi non raggiungibili, che hanno tempo Double.MAX_VALUE). Ogni
+    // nodo viene estratto una volta sola e i miglioramenti dei nodi in coda
+    // passano per decrease-key.
+    static void dijkstra(Graph graph, int sorgente, double[] tempo, int[] percorso, NodeQueue queue) {
+        Metrics.QueryEvent event = Metrics.beginQuery();
+        int dim = graph.size();
+        boolean[] visitati = new boolean[dim];
+        long relaxations = 0;
+        long pushes = 1;
+        long settled = 0;
+
+        Arrays.fill(tempo, Double.MAX_VALUE);
+        Arrays.fill(percorso, -1);
+
+        // modello delle attese letto una volta per ricerca
+        AttesaModel attese = graph.attesaModel();
+        double[] fisse = FixedAttesa.arrayOf(attese);
+
+        // sorgente, istante 0
+        tempo[sorgente] = 0;
+        queue.clear();
+        queue.push(sorgente, 0);
+
+        while (!queue.isEmpty()) {
+            int partenza = queue.pop();
+            visitati[partenza] = true; // il tempo di partenza è definitivo
+            settled++;
+
+            for (int arco = graph.firstEdge(partenza); arco < graph.endEdge(partenza); arco++) {
+
+                int destinazione = graph.target(arco);
+                if (visitati[destinazione]) {
+                    continue;
+                }
+                relaxations++;
+
+                double tempo_t = tempo[partenza] + graph.weight(arco);
+                double tempo_effettivo = fisse != null ? tempo_t + fisse[destinazione]
+                        : attese.partenza(destinazione, tempo_t);
+
+                if (tempo[destinazione] > tempo_effettivo) {
+                    tempo[destinazione] = tempo_effettivo;
+                    percorso[destinazione] = partenza;
+                    queue.push(destinazione, tempo_effettivo);
+                    pushes++;
+                }
+            }
+        }
+
+        countSearch(relaxations, pushes, settled);
+        Metrics.end(event, "dijkstra", settled);
+    }
+
+    // pubblica i contatori di una ricerca, una volta sola alla fine: il ciclo
+    // conta in variabili locali e non legge Metrics a ogni arco. Le code
+    // usano decrease-key e non hanno elementi scaduti: ogni estrazione rende
+    // definitivo un nodo, quindi le estrazioni sono i nodi definitivi.
+    private static void countSearch(long relaxations, long pushes, long settled) {
+        if (Metrics.isEnabled()) {
+            Metrics.Counter.DIJKSTRA_RELAXATIONS.add(relaxations);
+            Metrics.Counter.DIJKSTRA_HEAP_PUSHES.add(pushes);
+            Metrics.Counter.DIJKSTRA_SETTLED_NODES.add(settled);
+        }
+    }
+
+    // ricerca del cammino minimo
+    public static void camminiMinimi(Graph graph) {
+        camminiMinimi(graph, QueueType.BINARY_HEAP);
+    }
+
+    // ricerca del cammino minimo dal nodo 0 al nodo dim - 1 con la coda scelta
+    public static void camminiMinimi(Graph graph, QueueType queueType) {
+        int dim = graph.size();
+
+        int[] percorso = new int[dim];
+        double[] tempo = new double[dim];
+        dijkstra(graph, 0, tempo, percorso, queueType.create(dim));
+
+        if (tempo[dim - 1] == Double.MAX_VALUE) {
+            System.out.println("Non raggiungibile");
+            return;
+        } else {
+            printCamminiMinimi(dim, percorso, tempo);
+        }
+    }
+
+    // risultato di una query: tempo minimo dalla sorgente alla destinazione e
+    // percorso, vuoto se la destinazione non è raggiungibile
+    static class Route {
+        final int source;
+        final int target;
+        final double tempo;
+        final int[] path;
+
+        Route(int source, int target, double tempo, int[] path) {
+            this.source = source;
+            this.target = target;
+            this.tempo = tempo;
+            this.path = path;
+        }
+
+        boolean isReachable() {
+            return path.length > 0;
+        }
+
+        // stesso formato di printCamminiMinimi
+        @Override
+        public String toString() {
+            if (!isReachable()) {
+                return "Non raggiungibile";
+            }
+            StringBuilder sb = new StringBuilder().append(tempo).append(System.lineSeparator());
+            for (int node : path) {
+                sb.append(node).append(" ");
+            }
+            return sb.toString();
+        }
+    }
+
+    // array di una ricerca, riusati tra le query dello stesso thread. tempo e
+    // percorso di un nodo valgono solo se stamp[nodo] è la generazione
+    // corrente, e un nodo è definitivo se settled[nodo] lo è: iniziare una
+    // nuova query costa quindi un incremento invece di tre Arrays.fill in O(n)
+    static class Workspace {
+        final double[] tempo;
+        final int[] percorso;
+        final int[] stamp;
+        final int[] settled;
+        final IndexedHeap queue;
+        int generation;
+
+        Workspace(int numNodes) {
+            this.tempo = new double[numNodes];
+            this.percorso = new int[numNodes];
+            this.stamp = new int[numNodes];
+            this.settled = new int[numNodes];
+            this.queue = new IndexedHeap(numNodes, 4);
+        }
+
+        // invalida tutti i valori della query precedente
+        void reset() {
+            if (++generation == Integer.MAX_VALUE) {
+                Arrays.fill(stamp, 0);
+                Arrays.fill(settled, 0);
+                generation = 1;
+            }
+            queue.clear();
+        }
+
+        double tempo(int node) {
+            return stamp[node] == generation ? tempo[node] : Double.MAX_VALUE;
+        }
+    }
+
+    // query (sorgente, destinazione) su un grafo condiviso in sola lettura.
+    // Ogni thread ha il suo Workspace, e la ricerca si ferma appena la
+    // destinazione è estratta dalla coda, cioè quando il suo tempo è
+    // definitivo. Un batch di query viene diviso tra i thread di un
+    // ForkJoinPool.
+    static class QueryEngine {
+        private static final int BATCH_CHUNK = 16;
+
+        private final Graph graph;
+        private final ForkJoinPool pool;
+        private final ThreadLocal<Workspace> workspaces;
+
+        QueryEngine(Graph graph) {
+            this(graph, ForkJoinPool.commonPool());
+        }
+
+        QueryEngine(Graph graph, ForkJoinPool pool) {
+            this.graph = graph;
+            this.pool = pool;
+            this.workspaces = ThreadLocal.withInitial(() -> new Workspace(graph.size()));
+        }
+
+        Route query(int source, int target) {
+            if (source < 0 || source >= graph.size() || target < 0 || target >= graph.size()) {
+                throw new IllegalArgumentException("Query " + source + "-" + target + " con nodi inesistenti");
+            }
+
+            Workspace ws = workspaces.get();
+            search(ws, source, target);
+
+            double tempo = ws.tempo(target);
+            if (tempo == Double.MAX_VALUE) {
+                return new Route(source, target, tempo, new int[0]);
+            }
+
+            int length = 1;
+            for (int node = target; node != source; node = ws.percorso[node]) {
+                length++;
+            }
+            int[] path = new int[length];
+            for (int node = target; length > 0; node = ws.percorso[node]) {
+                path[--length] = node;
+            }
+            return new Route(source, target, tempo, path);
+        }
+
+        // esegue in parallelo le query (sources[i], targets[i])
+        Route[] queryAll(int[] sources, int[] targets) {
+            if (sources.length != targets.length) {
+                throw new IllegalArgumentException("Sorgenti e destinazioni hanno lunghezze diverse");
+            }
+            Route[] routes = new Route[sources.length];
+            pool.invoke(new BatchTask(sources, targets, routes, 0, sources.length));
+            return routes;
+        }
+
+        // Dijkstra dalla sorgente fino all'estrazione della destinazione
+        private void search(Workspace ws, int source, int target) {
+            Metrics.QueryEvent event = Metrics.beginQuery();
+            ws.reset();
+            int generation = ws.generation;
+            double[] tempo = ws.tempo;
+            int[] stamp = ws.stamp;
+            int[] settled = ws.settled;
+            IndexedHeap queue = ws.queue;
+            AttesaModel attese = graph.attesaModel();
+            double[] fisse = FixedAttesa.arrayOf(attese);
+
+            tempo[source] = 0;
+            ws.percorso[source] = -1;
+            stamp[source] = generation;
+            queue.push(source, 0);
+            long relaxations = 0;
+            long pushes = 1;
+            long settledNodes = 0;
+
+            while (!queue.isEmpty()) {
+                int partenza = queue.pop();
+                settled[partenza] = generation;
+                settledNodes++;
+                if (partenza == target) {
+                    break;
+                }
+
+                for (int arco = graph.firstEdge(partenza); arco < graph.endEdge(partenza); arco++) {
+
+                    int destinazione = graph.target(arco);
+                    if (settled[destinazione] == generation) {
+                        continue;
+                    }
+                    relaxations++;
+
+                    double tempo_t = tempo[partenza] + graph.weight(arco);
+                    double tempo_effettivo = fisse != null ? tempo_t + fisse[destinazione]
+                            : attese.partenza(destinazione, tempo_t);
+
+                    if (stamp[destinazione] != generation || tempo[destinazione] > tempo_effettivo) {
+                        stamp[destinazione] = generation;
+                        tempo[destinazione] = tempo_effettivo;
+                        ws.percorso[destinazione] = partenza;
+                        queue.push(destinazione, tempo_effettivo);
+                        pushes++;
+                    }
+                }
+            }
+
+            countSearch(relaxations, pushes, settledNodes);
+            Metrics.end(event, "query", settledNodes);
+        }
+
+        private class BatchTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final int[] sources;
+            private final int[] targets;
+            private final Route[] routes;
+            private final int from;
+            private final int to;
+
+            BatchTask(int[] sources, int[] targets, Route[] routes, int from, int to) {
+                this.sources = sources;
+                this.targets = targets;
+                this.routes = routes;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= BATCH_CHUNK) {
+                    for (int i = from; i < to; i++) {
+                        routes[i] = query(sources[i], targets[i]);
+                    }
+                    return;
+                }
+                int mid = (from + to) >>> 1;
+                invokeAll(new BatchTask(sources, targets, routes, from, mid),
+                        new BatchTask(sources, targets, routes, mid, to));
+            }
+        }
+    }
+
+    // esegue numQueries query casuali in parallelo e ne misura il throughput
+    static void benchmarkQueries(Graph graph, int numQueries, long seed) {
+        Random rnd = new Random(seed);
+        int[] sources = new int[numQueries];
+        int[] targets = new int[numQueries];
+        for (int i = 0; i < numQueries; i++) {
+            sources[i] = rnd.nextInt(graph.size());
+            targets[i] = rnd.nextInt(graph.size());
+        }
+
+        QueryEngine engine = new QueryEngine(graph);
+        long start = System.nanoTime();
+        Route[] routes = engine.queryAll(sources, targets);
+        long elapsed = System.nanoTime() - start;
+
+        int reachable = 0;
+        for (Route route : routes) {
+            if (route.isReachable()) {
+                reachable++;
+            }
+        }
+        System.out.printf("%d query (%d raggiungibili) in %.2f ms, %.0f query/s con %d thread%n", numQueries,
+                reachable, elapsed / 1e6, numQueries / (elapsed / 1e9), ForkJoinPool.getCommonPoolParallelism());
+    }
+
+    // gerarchia di contrazione: i nodi vengono contratti uno alla volta in
+    // ordine di importanza, e quando un nodo v è contratto ogni cammino u -> v
+    // -> x che non ha un'alternativa altrettanto breve diventa una scorciatoia
+    // u -> x. Una query è un Dijkstra bidirezionale che dalla sorgente sale
+    // solo verso nodi contratti dopo e dalla destinazione fa lo stesso sugli
+    // archi entranti, e visita poche centinaia di nodi anche su grafi grandi.
+    //
+    // L'attesa del nodo di arrivo è inclusa nel costo dell'arco (w + attesa),
+    // quindi la gerarchia richiede attese fisse. Il tempo restituito è
+    // ricalcolato sul percorso espanso come (t + w) + attesa, nello stesso
+    // ordine di Dijkstra, quindi a parità di percorso è identico bit per bit;
+    // tra percorsi con lo stesso tempo la scelta può differire.
+    static class ContractionHierarchy {
+        static final int MAGIC = 0x45334348; // "E3CH"
+        static final int VERSION = 2;
+        static final String EXTENSION = ".ch";
+
+        // nodi visitati al massimo da una ricerca di testimoni
+        private static final int WITNESS_LIMIT = 500;
+
+        private final double[] attese;
+        private final int[] rank; // posizione di ogni nodo nell'ordine di contrazione
+
+        // archi verso nodi di rango maggiore, per nodo di partenza
+        private final int[] upOffsets;
+        private final int[] upSources;
+        private final int[] upTargets;
+        private final double[] upWeights; // w + attesa, somma per le scorciatoie
+        private final double[] upRaw; // w dell'arco originale, NaN per le scorciatoie
+        private final int[] upMiddle; // nodo contratto della scorciatoia, -1 per gli archi originali
+
+        // archi da nodi di rango maggiore, per nodo di arrivo
+        private final int[] downOffsets;
+        private final int[] downSources;
+        private final int[] downTargets;
+        private final double[] downWeights;
+        private final double[] downRaw;
+        private final int[] downMiddle;
+
+        private final ThreadLocal<Workspace> forward;
+        private final ThreadLocal<Workspace> backward;
+
+        private ContractionHierarchy(double[] attese, int[] rank, int[] upOffsets, int[] upSources,
+                int[] upTargets, double[] upWeights, double[] upRaw, int[] upMiddle, int[] downOffsets,
+                int[] downSources, int[] downTargets, double[] downWeights, double[] downRaw, int[] downMiddle) {
+            this.attese = attese;
+            this.rank = rank;
+            this.upOffsets = upOffsets;
+            this.upSources = upSources;
+            this.upTargets = upTargets;
+            this.upWeights = upWeights;
+            this.upRaw = upRaw;
+            this.upMiddle = upMiddle;
+            this.downOffsets = downOffsets;
+            this.downSources = downSources;
+            this.downTargets = downTargets;
+            this.downWeights = downWeights;
+            this.downRaw = downRaw;
+            this.downMiddle = downMiddle;
+            this.forward = ThreadLocal.withInitial(() -> new Workspace(attese.length));
+            this.backward = ThreadLocal.withInitial(() -> new Workspace(attese.length));
+        }
+
+        int size() {
+            return attese.length;
+        }
+
+        int rank(int node) {
+            return rank[node];
+        }
+
+        // archi della gerarchia, scorciatoie comprese
+        int edgeCount() {
+            return upTargets.length + downTargets.length;
+        }
+
+        // archi del grafo durante la contrazione, con i soli nodi non ancora
+        // contratti; la rimozione sposta l'ultimo arco al posto di quello tolto
+        private static class EdgeList {
+            int[] nodes = new int[4];
+            double[] weights = new double[4];
+            double[] raw = new double[4];
+            int[] middles = new int[4];
+            int size;
+
+            int find(int node) {
+                for (int i = 0; i < size; i++) {
+                    if (nodes[i] == node) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+
+            void add(int node, double weight, double rawWeight, int middle) {
+                if (size == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, 2 * size);
+                    weights = Arrays.copyOf(weights, 2 * size);
+                    raw = Arrays.copyOf(raw, 2 * size);
+                    middles = Arrays.copyOf(middles, 2 * size);
+                }
+                nodes[size] = node;
+                weights[size] = weight;
+                raw[size] = rawWeight;
+                middles[size++] = middle;
+            }
+
+            void set(int i, double weight, double rawWeight, int middle) {
+                weights[i] = weight;
+                raw[i] = rawWeight;
+                middles[i] = middle;
+            }
+
+            void remove(int i) {
+                size--;
+                nodes[i] = nodes[size];
+                weights[i] = weights[size];
+                raw[i] = raw[size];
+                middles[i] = middles[size];
+            }
+        }
+
+        // costruisce la gerarchia; l'ordine di contrazione segue la differenza
+        // tra scorciatoie aggiunte e archi rimossi, più il numero di vicini già
+        // contratti, aggiornata in modo pigro all'estrazione dalla coda
+        static ContractionHierarchy build(Graph graph) {
+            Metrics.BuildEvent event = Metrics.beginBuild();
+            double[] attese = graph.fixedAttese("La gerarchia di contrazione");
+            Contractor contractor = new Contractor(graph, attese);
+            int n = graph.size();
+            int[] rank = new int[n];
+
+            IndexedHeap queue = new IndexedHeap(n, 4);
+            for (int v = 0; v < n; v++) {
+                queue.push(v, contractor.priority(v));
+            }
+
+            int order = 0;
+            while (!queue.isEmpty()) {
+                int v = queue.pop();
+                double priority = contractor.priority(v);
+                if (!queue.isEmpty() && priority > queue.minKey()) {
+                    queue.push(v, priority);
+                    continue;
+                }
+                contractor.contract(v);
+                rank[v] = order++;
+            }
+
+            // dopo la contrazione out[v] e in[v] contengono solo i vicini
+            // contratti dopo v, cioè gli archi in salita e in discesa
+            int[] upOffsets = new int[n + 1];
+            int[] downOffsets = new int[n + 1];
+            for (int v = 0; v < n; v++) {
+                upOffsets[v + 1] = upOffsets[v] + contractor.out[v].size;
+                downOffsets[v + 1] = downOffsets[v] + contractor.in[v].size;
+            }
+
+            int up = upOffsets[n];
+            int down = downOffsets[n];
+            int[] upSources = new int[up];
+            int[] upTargets = new int[up];
+            double[] upWeights = new double[up];
+            double[] upRaw = new double[up];
+            int[] upMiddle = new int[up];
+            int[] downSources = new int[down];
+            int[] downTargets = new int[down];
+            double[] downWeights = new double[down];
+            double[] downRaw = new double[down];
+            int[] downMiddle = new int[down];
+
+            for (int v = 0; v < n; v++) {
+                EdgeList out = contractor.out[v];
+                for (int i = 0, e = upOffsets[v]; i < out.size; i++, e++) {
+                    upSources[e] = v;
+                    upTargets[e] = out.nodes[i];
+                    upWeights[e] = out.weights[i];
+                    upRaw[e] = out.raw[i];
+                    upMiddle[e] = out.middles[i];
+                }
+                EdgeList in = contractor.in[v];
+                for (int i = 0, e = downOffsets[v]; i < in.size; i++, e++) {
+                    downSources[e] = in.nodes[i];
+                    downTargets[e] = v;
+                    downWeights[e] = in.weights[i];
+                    downRaw[e] = in.raw[i];
+                    downMiddle[e] = in.middles[i];
+                }
+            }
+
+            ContractionHierarchy ch = new ContractionHierarchy(attese.clone(), rank, upOffsets, upSources, upTargets,
+                    upWeights, upRaw, upMiddle, downOffsets, downSources, downTargets, downWeights, downRaw, downMiddle);
+            Metrics.end(event, "contraction-hierarchy", up + down);
+            return ch;
+        }
+
+        // stato della contrazione: liste di archi uscenti ed entranti per nodo
+        private static class Contractor {
+            final EdgeList[] out;
+            final EdgeList[] in;
+            final boolean[] contracted;
+            final int[] contractedNeighbors;
+            final int[] level; // 1 + livello massimo dei vicini già contratti
+            final Workspace witness;
+
+            Contractor(Graph graph, double[] attese) {
+                int n = graph.size();
+                out = new EdgeList[n];
+                in = new EdgeList[n];
+                for (int v = 0; v < n; v++) {
+                    out[v] = new EdgeList();
+                    in[v] = new EdgeList();
+                }
+                contracted = new boolean[n];
+                contractedNeighbors = new int[n];
+                level = new int[n];
+                witness = new Workspace(n);
+
+                // tra archi paralleli resta il più breve; i cappi non servono
+                for (int u = 0; u < n; u++) {
+                    for (int e = graph.firstEdge(u); e < graph.endEdge(u); e++) {
+                        int v = graph.target(e);
+                        if (v == u) {
+                            continue;
+                        }
+                        double w = graph.weight(e);
+                        int i = out[u].find(v);
+                        if (i < 0) {
+                            out[u].add(v, w + attese[v], w, -1);
+                            in[v].add(u, w + attese[v], w, -1);
+                        } else if (w < out[u].raw[i]) {
+                            out[u].set(i, w + attese[v], w, -1);
+                            in[v].set(in[v].find(u), w + attese[v], w, -1);
+                        }
+                    }
+                }
+            }
+
+            double priority(int v) {
+                return shortcuts(v, false) - (in[v].size + out[v].size) + contractedNeighbors[v] + level[v];
+            }
+
+            void contract(int v) {
+                shortcuts(v, true);
+                contracted[v] = true;
+
+                for (int i = 0; i < in[v].size; i++) {
+                    int u = in[v].nodes[i];
+                    out[u].remove(out[u].find(v));
+                    contractedNeighbors[u]++;
+                    level[u] = Math.max(level[u], level[v] + 1);
+                }
+                for (int i = 0; i < out[v].size; i++) {
+                    int x = out[v].nodes[i];
+                    in[x].remove(in[x].find(v));
+                    contractedNeighbors[x]++;
+                    level[x] = Math.max(level[x], level[v] + 1);
+                }
+            }
+
+            // conta, e se add è vero aggiunge, le scorciatoie u -> x necessarie
+            // togliendo v: servono quando la ricerca di testimoni da u che evita
+            // v non trova un cammino lungo al più quanto u -> v -> x
+            private int shortcuts(int v, boolean add) {
+                EdgeList inV = in[v];
+                EdgeList outV = out[v];
+                double maxOut = 0;
+                for (int j = 0; j < outV.size; j++) {
+                    maxOut = Math.max(maxOut, outV.weights[j]);
+                }
+
+                int count = 0;
+                for (int i = 0; i < inV.size; i++) {
+                    int u = inV.nodes[i];
+                    double wu = inV.weights[i];
+                    witnessSearch(u, v, wu + maxOut);
+
+                    for (int j = 0; j < outV.size; j++) {
+                        int x = outV.nodes[j];
+                        if (x == u) {
+                            continue;
+                        }
+                        double candidate = wu + outV.weights[j];
+                        if (witness.tempo(x) <= candidate) {
+                            continue;
+                        }
+
+                        count++;
+                        if (add) {
+                            int k = out[u].find(x);
+                            if (k < 0) {
+                                out[u].add(x, candidate, Double.NaN, v);
+                                in[x].add(u, candidate, Double.NaN, v);
+                            } else if (candidate < out[u].weights[k]) {
+                                out[u].set(k, candidate, Double.NaN, v);
+                                in[x].set(in[x].find(u), candidate, Double.NaN, v);
+                            }
+                        }
+                    }
+                }
+                return count;
+            }
+
+            // Dijkstra da u che non passa per v, fermato oltre il limite di
+            // tempo o dopo WITNESS_LIMIT nodi
+            private void witnessSearch(int u, int v, double limit) {
+                Workspace ws = witness;
+                ws.reset();
+                ws.tempo[u] = 0;
+                ws.stamp[u] = ws.generation;
+                ws.queue.push(u, 0);
+
+                int settled = 0;
+                while (!ws.queue.isEmpty() && ws.queue.minKey() <= limit && settled++ < WITNESS_LIMIT) {
+                    int node = ws.queue.pop();
+                    EdgeList edges = out[node];
+                    for (int i = 0; i < edges.size; i++) {
+                        int next = edges.nodes[i];
+                        if (next == v) {
+                            continue;
+                        }
+                        double t = ws.tempo[node] + edges.weights[i];
+                        if (t < ws.tempo(next)) {
+                            ws.tempo[next] = t;
+                            ws.stamp[next] = ws.generation;
+                            ws.queue.push(next, t);
+                        }
+                    }
+                }
+            }
+        }
+
+        // Dijkstra bidirezionale sugli archi in salita; ogni direzione si
+        // ferma quando la sua chiave minima non può migliorare il miglior
+        // tempo trovato. percorso contiene l'arco con cui si è raggiunto il
+        // nodo, in salita per la ricerca in avanti e in discesa per l'altra.
+        Route query(int source, int target) {
+            int n = size();
+            if (source < 0 || source >= n || target < 0 || target >= n) {
+                throw new IllegalArgumentException("Query " + source + "-" + target + " con nodi inesistenti");
+            }
+
+            Metrics.QueryEvent event = Metrics.beginQuery();
+            Workspace fw = forward.get();
+            Workspace bw = backward.get();
+            fw.reset();
+            bw.reset();
+            start(fw, source);
+            start(bw, target);
+
+            double best = Double.MAX_VALUE;
+            int meet = -1;
+            long settled = 0;
+            while (!fw.queue.isEmpty() || !bw.queue.isEmpty()) {
+                boolean forwardStep = bw.queue.isEmpty()
+                        || (!fw.queue.isEmpty() && fw.queue.minKey() <= bw.queue.minKey());
+                Workspace ws = forwardStep ? fw : bw;
+                Workspace other = forwardStep ? bw : fw;
+                if (ws.queue.minKey() >= best) {
+                    break;
+                }
+
+                int node = ws.queue.pop();
+                settled++;
+                double t = ws.tempo[node] + other.tempo(node);
+                if (other.tempo(node) != Double.MAX_VALUE && t < best) {
+                    best = t;
+                    meet = node;
+                }
+
+                if (forwardStep) {
+                    for (int e = upOffsets[node]; e < upOffsets[node + 1]; e++) {
+                        relax(ws, upTargets[e], ws.tempo[node] + upWeights[e], e);
+                    }
+                } else {
+                    for (int e = downOffsets[node]; e < downOffsets[node + 1]; e++) {
+                        relax(ws, downSources[e], ws.tempo[node] + downWeights[e], e);
+                    }
+                }
+            }
+
+            Metrics.end(event, "ch.query", settled);
+            if (meet < 0) {
+                return new Route(source, target, Double.MAX_VALUE, new int[0]);
+            }
+            return unpack(fw, bw, source, target, meet);
+        }
+
+        private static void start(Workspace ws, int node) {
+            ws.tempo[node] = 0;
+            ws.percorso[node] = -1;
+            ws.stamp[node] = ws.generation;
+            ws.queue.push(node, 0);
+        }
+
+        private static void relax(Workspace ws, int node, double t, int edge) {
+            if (t < ws.tempo(node)) {
+                ws.tempo[node] = t;
+                ws.percorso[node] = edge;
+                ws.stamp[node] = ws.generation;
+                ws.queue.push(node, t);
+            }
+        }
+
+        // espande le scorciatoie del percorso sorgente -> meet -> destinazione
+        // e ricalcola il tempo sugli archi originali. Gli archi sono codificati
+        // come e per quelli in salita e ~e per quelli in discesa.
+        private Route unpack(Workspace fw, Workspace bw, int source, int target, int meet) {
+            int[] stack = new int[16];
+            int top = 0;
+
+            // la pila va letta dalla cima: si inseriscono prima gli archi
+            // verso la destinazione, dall'ultimo, poi quelli dalla sorgente
+            int[] backwardEdges = new int[16];
+            int count = 0;
+            for (int node = meet; bw.percorso[node] >= 0; node = downTargets[bw.percorso[node]]) {
+                if (count == backwardEdges.length) {
+                    backwardEdges = Arrays.copyOf(backwardEdges, 2 * count);
+                }
+                backwardEdges[count++] = ~bw.percorso[node];
+            }
+            for (int i = count - 1; i >= 0; i--) {
+                stack = push(stack, top++, backwardEdges[i]);
+            }
+            for (int node = meet; fw.percorso[node] >= 0; node = upSources[fw.percorso[node]]) {
+                stack = push(stack, top++, fw.percorso[node]);
+            }
+
+            int[] path = new int[16];
+            int length = 0;
+            path[length++] = source;
+            double tempo = 0;
+
+            while (top > 0) {
+                int edge = stack[--top];
+                int from = edge >= 0 ? upSources[edge] : downSources[~edge];
+                int to = edge >= 0 ? upTargets[edge] : downTargets[~edge];
+                int middle = edge >= 0 ? upMiddle[edge] : downMiddle[~edge];
+
+                if (middle < 0) {
+                    tempo = (tempo + (edge >= 0 ? upRaw[edge] : downRaw[~edge])) + attese[to];
+                    if (length == path.length) {
+                        path = Arrays.copyOf(path, 2 * length);
+                    }
+                    path[length++] = to;
+                    continue;
+                }
+
+                // from -> middle è in discesa verso middle, middle -> to è in
+                // salita da middle, perché middle è stato contratto prima
+                stack = push(stack, top++, upEdge(middle, to));
+                stack = push(stack, top++, ~downEdge(from, middle));
+            }
+
+            return new Route(source, target, tempo, Arrays.copyOf(path, length));
+        }
+
+        private static int[] push(int[] stack, int top, int edge) {
+            if (top == stack.length) {
+                stack = Arrays.copyOf(stack, 2 * top);
+            }
+            stack[top] = edge;
+            return stack;
+        }
+
+        private int upEdge(int from, int to) {
+            for (int e = upOffsets[from]; e < upOffsets[from + 1]; e++) {
+                if (upTargets[e] == to) {
+                    return e;
+                }
+            }
+            throw new IllegalStateException("Arco " + from + "-" + to + " mancante nella gerarchia");
+        }
+
+        private int downEdge(int from, int to) {
+            for (int e = downOffsets[to]; e < downOffsets[to + 1]; e++) {
+                if (downSources[e] == from) {
+                    return e;
+                }
+            }
+            throw new IllegalStateException("Arco " + from + "-" + to + " mancante nella gerarchia");
+        }
+
+        // scrive la gerarchia costruita dal grafo di source. L'intestazione
+        // contiene numero magico, versione, numero di nodi e di archi,
+        // dimensione e data di modifica di source e attesaTag(); seguono gli
+        // array e, in coda, il CRC32 di tutto quello che precede. Il file è
+        // scritto accanto con un nome temporaneo e poi rinominato, quindi chi
+        // lo legge non vede mai un file scritto a metà
+        void write(String filename, String source) throws IOException {
+            Path sourcePath = Paths.get(source);
+            Path target = Paths.get(filename).toAbsolutePath();
+            Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+            try {
+                writeTo(temp, sourcePath);
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        private void writeTo(Path file, Path sourcePath) throws IOException {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(file), 1 << 20), new CRC32());
+            try (DataOutputStream out = new DataOutputStream(checked)) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(size());
+                out.writeInt(upTargets.length);
+                out.writeInt(downTargets.length);
+                out.writeLong(Files.size(sourcePath));
+                out.writeLong(Files.getLastModifiedTime(sourcePath).toMillis());
+                out.writeLong(attesaTag());
+
+                writeDoubles(out, attese);
+                writeInts(out, rank);
+                writeInts(out, upOffsets);
+                writeInts(out, upSources);
+                writeInts(out, upTargets);
+                writeDoubles(out, upWeights);
+                writeDoubles(out, upRaw);
+                writeInts(out, upMiddle);
+                writeInts(out, downOffsets);
+                writeInts(out, downSources);
+                writeInts(out, downTargets);
+                writeDoubles(out, downWeights);
+                writeDoubles(out, downRaw);
+                writeInts(out, downMiddle);
+
+                out.writeLong(checked.getChecksum().getValue());
+            }
+        }
+
+        // legge una gerarchia scritta da write; restituisce null se il file
+        // manca, se è di un'altra versione, se source è cambiato dopo la
+        // scrittura, se le attese erano di un altro modello o se il CRC non
+        // corrisponde
+        static ContractionHierarchy read(String filename, String source) throws IOException {
+            Path sourcePath = Paths.get(source);
+            if (!Files.exists(Paths.get(filename))) {
+                return null;
+            }
+
+            CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(filename), 1 << 20), new CRC32());
+            try (DataInputStream in = new DataInputStream(checked)) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                int n = in.readInt();
+                int up = in.readInt();
+                int down = in.readInt();
+                long sourceSize = in.readLong();
+                long sourceModified = in.readLong();
+                long tag = in.readLong();
+
+                if (Files.exists(sourcePath) && (sourceSize != Files.size(sourcePath)
+                        || sourceModified != Files.getLastModifiedTime(sourcePath).toMillis())) {
+                    return null;
+                }
+                if (tag != attesaTag() || n < 0 || up < 0 || down < 0) {
+                    return null;
+                }
+
+                ContractionHierarchy ch = new ContractionHierarchy(readDoubles(in, n), readInts(in, n),
+                        readInts(in, n + 1), readInts(in, up), readInts(in, up), readDoubles(in, up),
+                        readDoubles(in, up), readInts(in, up), readInts(in, n + 1), readInts(in, down),
+                        readInts(in, down), readDoubles(in, down), readDoubles(in, down), readInts(in, down));
+
+                long crc = checked.getChecksum().getValue();
+                if (in.readLong() != crc || in.read() != -1) {
+                    return null;
+                }
+                return ch;
+            } catch (EOFException e) {
+                // file troncato
+                return null;
+            }
+        }
+
+        // legge la gerarchia del grafo salvata accanto al file, o la
+        // costruisce e la salva
+        static ContractionHierarchy loadOrBuild(String source) throws IOException {
+            String filename = source + EXTENSION;
+            ContractionHierarchy ch = read(filename, source);
+            if (ch == null) {
+                ch = build(buildGraph(source));
+                ch.write(filename, source);
+            }
+            return ch;
+        }
+
+        private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+            for (int v : values) {
+                out.writeInt(v);
+            }
+        }
+
+        private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+            for (double v : values) {
+                out.writeDouble(v);
+            }
+        }
+
+        private static int[] readInts(DataInputStream in, int count) throws IOException {
+            int[] values = new int[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = in.readInt();
+            }
+            return values;
+        }
+
+        private static double[] readDoubles(DataInputStream in, int count) throws IOException {
+            double[] values = new double[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = in.readDouble();
+            }
+            return values;
+        }
+    }
+
+    // lista di interi che cresce raddoppiando
+    static class IntList {
+        int[] data = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, 2 * size);
+            }
+            data[size++] = value;
+        }
+    }
+
+    // delta-stepping: i nodi sono divisi in bucket larghi delta secondo il
+    // tempo provvisorio, e i bucket sono elaborati in ordine. Dentro un bucket
+    // gli archi leggeri (tempo di percorrenza al più delta) dei nodi della
+    // frontiera sono rilassati in parallelo finché il bucket non si svuota,
+    // poi quelli pesanti una volta sola. I tempi sono in un AtomicLongArray
+    // come bit del double, che per valori non negativi hanno lo stesso
+    // ordine, e si abbassano con compareAndSet senza lock. Il tempo
+    // calcolato per ogni nodo è lo stesso minimo di Dijkstra; il
+    // predecessore è scelto alla fine tra gli archi entranti che danno quel
+    // tempo, preferendo il nodo con tempo minore. I bucket in uso sono al più
+    // (costo massimo di un arco + attesa massima) / delta + 2, e un delta che
+    // ne richiederebbe più di MAX_BUCKETS è rifiutato.
+    static class DeltaStepping {
+        private static final int SEQUENTIAL_THRESHOLD = 256;
+
+        // bucket del buffer circolare, ognuno con la sua IntList
+        static final int MAX_BUCKETS = 1 << 16;
+
+        private final Graph graph;
+        private final double delta;
+        private final ForkJoinPool pool;
+
+        // archi entranti in formato CSR, per la scelta dei predecessori
+        private final int[] inOffsets;
+        private final int[] inSources;
+        private final double[] inWeights;
+
+        // stato di una esecuzione
+        private AtomicLongArray dist;
+        private AtomicIntegerArray updatedPhase;
+        private int[] updated;
+        private AtomicInteger updatedCount;
+        private int phase;
+        private AttesaModel attese;
+        private double[] fisse; // null se le attese non sono fisse
+
+        DeltaStepping(Graph graph, double delta) {
+            this(graph, delta, ForkJoinPool.commonPool());
+        }
+
+        DeltaStepping(Graph graph, double delta, ForkJoinPool pool) {
+            if (!(delta > 0)) {
+                throw new IllegalArgumentException("Delta deve essere positivo: " + delta);
+            }
+            this.graph = graph;
+            this.delta = delta;
+            this.pool = pool;
+
+            int n = graph.size();
+            inOffsets = new int[n + 1];
+            for (int e = 0; e < graph.edgeCount(); e++) {
+                inOffsets[graph.target(e) + 1]++;
+            }
+            for (int i = 0; i < n; i++) {
+                inOffsets[i + 1] += inOffsets[i];
+            }
+            int[] fill = Arrays.copyOf(inOffsets, n);
+            inSources = new int[graph.edgeCount()];
+            inWeights = new double[graph.edgeCount()];
+            for (int u = 0; u < n; u++) {
+                for (int e = graph.firstEdge(u); e < graph.endEdge(u); e++) {
+                    int position = fill[graph.target(e)]++;
+                    inSources[position] = u;
+                    inWeights[position] = graph.weight(e);
+                }
+            }
+        }
+
+        // riempie tempo e percorso come dijkstra
+        void run(int sorgente, double[] tempo, int[] percorso) {
+            int n = graph.size();
+            dist = new AtomicLongArray(n);
+            long infinity = Double.doubleToLongBits(Double.MAX_VALUE);
+            for (int i = 0; i < n; i++) {
+                dist.set(i, infinity);
+            }
+            dist.set(sorgente, Double.doubleToLongBits(0));
+            updatedPhase = new AtomicIntegerArray(n);
+            updated = new int[n];
+            updatedCount = new AtomicInteger();
+            phase = 0;
+            attese = graph.attesaModel();
+            fisse = FixedAttesa.arrayOf(attese);
+
+            // i tempi provvisori stanno in [i * delta, i * delta + costo massimo],
+            // quindi bastano abbastanza bucket da coprire il costo massimo di
+            // un arco, usati in modo circolare
+            double maxCost = 0;
+            for (int e = 0; e < graph.edgeCount(); e++) {
+                maxCost = Math.max(maxCost, graph.weight(e));
+            }
+            double maxAttesa = attese.maxAttesa();
+            double needed = (maxCost + maxAttesa) / delta + 2;
+            if (needed > MAX_BUCKETS) {
+                throw new IllegalArgumentException(String.format(
+                        "Delta %s troppo piccolo: servirebbero %.0f bucket, al massimo %d; usare delta >= %s",
+                        delta, needed, MAX_BUCKETS, (maxCost + maxAttesa) / (MAX_BUCKETS - 2)));
+            }
+            int numBuckets = (int) needed;
+            IntList[] buckets = new IntList[numBuckets];
+            for (int b = 0; b < numBuckets; b++) {
+                buckets[b] = new IntList();
+            }
+            buckets[0].add(sorgente);
+
+            int[] inFrontier = new int[n];
+            int[] inSettled = new int[n];
+            IntList frontier = new IntList();
+            IntList settled = new IntList();
+            long bucket = 0;
+            int empty = 0;
+
+            while (empty < numBuckets) {
+                IntList slot = buckets[(int) (bucket % numBuckets)];
+                if (slot.size == 0) {
+                    bucket++;
+                    empty++;
+                    continue;
+                }
+                empty = 0;
+
+                // frontiera iniziale: i nodi del bucket che ci stanno ancora
+                phase++;
+                frontier.size = 0;
+                settled.size = 0;
+                for (int i = 0; i < slot.size; i++) {
+                    int node = slot.data[i];
+                    if (bucketOf(node) == bucket && inFrontier[node] != phase) {
+                        inFrontier[node] = phase;
+                        frontier.add(node);
+                    }
+                }
+                slot.size = 0;
+                int round = phase;
+
+                while (frontier.size > 0) {
+                    for (int i = 0; i < frontier.size; i++) {
+                        int node = frontier.data[i];
+                        if (inSettled[node] != round) {
+                            inSettled[node] = round;
+                            settled.add(node);
+                        }
+                    }
+
+                    relax(frontier, true);
+
+                    // i nodi migliorati nello stesso bucket sono la nuova frontiera
+                    phase++;
+                    frontier.size = 0;
+                    for (int i = 0, count = updatedCount.get(); i < count; i++) {
+                        int node = updated[i];
+                        long b = bucketOf(node);
+                        if (b == bucket) {
+                            frontier.add(node);
+                        } else {
+                            buckets[(int) (b % numBuckets)].add(node);
+                        }
+                    }
+                }
+
+                relax(settled, false);
+                for (int i = 0, count = updatedCount.get(); i < count; i++) {
+                    int node = updated[i];
+                    buckets[(int) (bucketOf(node) % numBuckets)].add(node);
+                }
+            }
+
+            for (int i = 0; i < n; i++) {
+                tempo[i] = Double.longBitsToDouble(dist.get(i));
+            }
+            pool.invoke(new PredecessorTask(sorgente, tempo, percorso, 0, n));
+        }
+
+        private long bucketOf(int node) {
+            return (long) (Double.longBitsToDouble(dist.get(node)) / delta);
+        }
+
+        // rilassa in parallelo gli archi leggeri o pesanti dei nodi; i nodi
+        // migliorati finiscono una volta sola in updated
+        private void relax(IntList nodes, boolean light) {
+            phase++;
+            updatedCount.set(0);
+            if (nodes.size <= SEQUENTIAL_THRESHOLD) {
+                new RelaxTask(nodes.data, light, phase, 0, nodes.size).compute();
+            } else {
+                pool.invoke(new RelaxTask(nodes.data, light, phase, 0, nodes.size));
+            }
         }
 
-        @Override
-        public String toString() {
+        private class RelaxTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final int[] nodes;
+            private final boolean light;
+            private final int phase;
+            private final int from;
+            private final int to;
+
+            RelaxTask(int[] nodes, boolean light, int phase, int from, int to) {
+                this.nodes = nodes;
+                this.light = light;
+                this.phase = phase;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from > SEQUENTIAL_THRESHOLD) {
+                    int mid = (from + to) >>> 1;
+                    invokeAll(new RelaxTask(nodes, light, phase, from, mid),
+                            new RelaxTask(nodes, light, phase, mid, to));
+                    return;
+                }
+
+                for (int i = from; i < to; i++) {
+                    int partenza = nodes[i];
+                    double tempo_partenza = Double.longBitsToDouble(dist.get(partenza));
+
+                    for (int arco = graph.firstEdge(partenza); arco < graph.endEdge(partenza); arco++) {
+                        int destinazione = graph.target(arco);
+                        double peso = graph.weight(arco);
+                        if ((peso <= delta) != light) {
+                            continue;
+                        }
+
+                        double tempo_t = tempo_partenza + peso;
+                        double tempo_effettivo = fisse != null ? tempo_t + fisse[destinazione]
+                                : attese.partenza(destinazione, tempo_t);
+                        long bits = Double.doubleToLongBits(tempo_effettivo);
+                        long current = dist.get(destinazione);
+                        while (bits < current) {
+                            if (dist.compareAndSet(destinazione, current, bits)) {
+                                if (updatedPhase.getAndSet(destinazione, phase) != phase) {
+                                    updated[updatedCount.getAndIncrement()] = destinazione;
+                                }
+                                break;
+                            }
+                            current = dist.get(destinazione);
+                        }
+                    }
+                }
+            }
+        }
 
-            StringBuilder sb = new StringBuilder();
-            sb.append("Node [id=").append(id).append(", attesa=").append(attesa).append(" nodi adiacenti=");
-            for (Node node : lista_di_adiacenza) {
-                sb.append(node.id).append(" ");
+        // il predecessore di v è il nodo u con tempo minore, e a parità con
+        // indice minore, per cui attesa(v, tempo[u] + w) è esattamente tempo[v]
+        private class PredecessorTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final int sorgente;
+            private final double[] tempo;
+            private final int[] percorso;
+            private final int from;
+            private final int to;
+
+            PredecessorTask(int sorgente, double[] tempo, int[] percorso, int from, int to) {
+                this.sorgente = sorgente;
+                this.tempo = tempo;
+                this.percorso = percorso;
+                this.from = from;
+                this.to = to;
             }
 
-            return sb.append("]").toString();
+            @Override
+            protected void compute() {
+                if (to - from > 16 * SEQUENTIAL_THRESHOLD) {
+                    int mid = (from + to) >>> 1;
+                    invokeAll(new PredecessorTask(sorgente, tempo, percorso, from, mid),
+                            new PredecessorTask(sorgente, tempo, percorso, mid, to));
+                    return;
+                }
+
+                for (int v = from; v < to; v++) {
+                    percorso[v] = -1;
+                    if (v == sorgente || tempo[v] == Double.MAX_VALUE) {
+                        continue;
+                    }
+                    for (int e = inOffsets[v]; e < inOffsets[v + 1]; e++) {
+                        int u = inSources[e];
+                        if (u == v || tempo[u] == Double.MAX_VALUE
+                                || graph.attesa(v, tempo[u] + inWeights[e]) != tempo[v]) {
+                            continue;
+                        }
+                        int best = percorso[v];
+                        if (best < 0 || tempo[u] < tempo[best] || (tempo[u] == tempo[best] && u < best)) {
+                            percorso[v] = u;
+                        }
+                    }
+                }
+            }
         }
     }
 
-    // costruisce il grafo, i primi due valori sono il numero di nodi e di archi
-    private static Graph buildGraph(String filename) {
+    // controlla che percorso sia un albero dei cammini minimi per i tempi
+    // dati: ogni nodo raggiunto, tranne la sorgente, ha come predecessore un
+    // nodo raggiunto con un arco che porta esattamente al suo tempo, e
+    // risalendo i predecessori si arriva sempre alla sorgente, senza cicli
+    static boolean isShortestPathTree(Graph graph, int sorgente, double[] tempo, int[] percorso) {
+        int n = graph.size();
+        for (int v = 0; v < n; v++) {
+            int u = percorso[v];
+            if (v == sorgente || tempo[v] == Double.MAX_VALUE) {
+                if (u != -1) {
+                    return false;
+                }
+                continue;
+            }
+            if (u < 0 || tempo[u] == Double.MAX_VALUE) {
+                return false;
+            }
+
+            boolean tight = false;
+            for (int arco = graph.firstEdge(u); arco < graph.endEdge(u) && !tight; arco++) {
+                tight = graph.target(arco) == v && graph.attesa(v, tempo[u] + graph.weight(arco)) == tempo[v];
+            }
+            if (!tight) {
+                return false;
+            }
+        }
+
+        // 0 = da visitare, 1 = sulla risalita in corso, 2 = arriva alla sorgente
+        byte[] state = new byte[n];
+        int[] path = new int[n];
+        state[sorgente] = 2;
+        for (int v = 0; v < n; v++) {
+            if (tempo[v] == Double.MAX_VALUE) {
+                continue;
+            }
+            int length = 0;
+            int node = v;
+            while (state[node] == 0) {
+                state[node] = 1;
+                path[length++] = node;
+                node = percorso[node];
+            }
+            if (state[node] == 1) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                state[path[i]] = 2;
+            }
+        }
+        return true;
+    }
+
+    // confronta delta-stepping e Dijkstra su un grafo casuale; i tempi
+    // devono coincidere esattamente e i predecessori formare un albero dei
+    // cammini minimi
+    static void benchmarkDeltaStepping(int numNodes, int numEdges, double delta, long seed) {
+        Graph graph = randomGraph(numNodes, numEdges, seed, false);
+        double[] tempo = new double[numNodes];
+        int[] percorso = new int[numNodes];
+        double[] riferimento = new double[numNodes];
+        int[] percorsoRiferimento = new int[numNodes];
+
+        NodeQueue queue = QueueType.BINARY_HEAP.create(numNodes);
+        DeltaStepping parallel = new DeltaStepping(graph, delta);
+        long dijkstraBest = Long.MAX_VALUE;
+        long parallelBest = Long.MAX_VALUE;
+
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            dijkstra(graph, 0, riferimento, percorsoRiferimento, queue);
+            long middle = System.nanoTime();
+            parallel.run(0, tempo, percorso);
+            long end = System.nanoTime();
+            dijkstraBest = Math.min(dijkstraBest, middle - start);
+            parallelBest = Math.min(parallelBest, end - middle);
+        }
+
+        if (!Arrays.equals(riferimento, tempo)) {
+            throw new IllegalStateException("Il delta-stepping ha dato tempi diversi da Dijkstra");
+        }
+        if (!isShortestPathTree(graph, 0, tempo, percorso)) {
+            throw new IllegalStateException("Il delta-stepping ha dato predecessori che non formano un albero"
+                    + " dei cammini minimi");
+        }
+        System.out.printf("dijkstra %8.2f ms, delta-stepping (delta %.1f, %d thread) %8.2f ms%n", dijkstraBest / 1e6,
+                delta, ForkJoinPool.getCommonPoolParallelism(), parallelBest / 1e6);
+    }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
-            int numNodes = Integer.parseInt(br.readLine().trim());
-            int numEdges = Integer.parseInt(br.readLine().trim());
+    // Bellman-Ford con coda: ricalcola i tempi di arrivo finché nessun arco
+    // li migliora, senza supporre che un nodo estratto sia definitivo. Serve
+    // da riferimento per Dijkstra con attese che dipendono dall'istante.
+    static double[] bellmanFord(Graph graph, int sorgente) {
+        int n = graph.size();
+        double[] tempo = new double[n];
+        Arrays.fill(tempo, Double.MAX_VALUE);
+        tempo[sorgente] = 0;
 
-            Graph graph = new Graph(numNodes, numEdges);
+        // coda circolare, ogni nodo è in coda al più una volta
+        int[] queue = new int[n];
+        boolean[] inQueue = new boolean[n];
+        int head = 0;
+        int size = 1;
+        queue[0] = sorgente;
+        inQueue[sorgente] = true;
 
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split(" ");
-                int nodo1 = Integer.parseInt(parts[0]);
-                int nodo2 = Integer.parseInt(parts[1]);
-                double tempo_di_percorrenza = Double.parseDouble(parts[2]);
+        while (size > 0) {
+            int u = queue[head];
+            head = head + 1 == n ? 0 : head + 1;
+            size--;
+            inQueue[u] = false;
 
-                graph.insertEdge(nodo1, nodo2, tempo_di_percorrenza);
+            for (int arco = graph.firstEdge(u); arco < graph.endEdge(u); arco++) {
+                int v = graph.target(arco);
+                double arrivo = graph.attesa(v, tempo[u] + graph.weight(arco));
+                if (arrivo < tempo[v]) {
+                    tempo[v] = arrivo;
+                    if (!inQueue[v]) {
+                        inQueue[v] = true;
+                        int tail = head + size < n ? head + size : head + size - n;
+                        queue[tail] = v;
+                        size++;
+                    }
+                }
             }
-            return graph;
+        }
+        return tempo;
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+    // Dijkstra con attese lineari a tratti su un grafo casuale, confrontato
+    // con Bellman-Ford: i tempi devono coincidere a meno degli arrotondamenti
+    // dell'interpolazione, e i predecessori formare un albero dei cammini
+    // minimi. I tempi di arrivo stanno per lo più tra 100 e 500, e i punti
+    // distano circa 8 l'uno dall'altro, meno dell'attesa massima: molti
+    // tratti hanno la pendenza minima -1, il caso limite per Dijkstra.
+    static void benchmarkPiecewise(int numNodes, int numEdges, long seed) {
+        Graph graph = randomGraph(numNodes, numEdges, seed, false);
+        PiecewiseAttesa model = PiecewiseAttesa.random(numNodes, 64, 500, seed);
+        graph.setAttesaModel(model);
+        double[] tempo = new double[numNodes];
+        int[] percorso = new int[numNodes];
+
+        NodeQueue queue = QueueType.BINARY_HEAP.create(numNodes);
+        long dijkstraBest = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            dijkstra(graph, 0, tempo, percorso, queue);
+            dijkstraBest = Math.min(dijkstraBest, System.nanoTime() - start);
+        }
+
+        long start = System.nanoTime();
+        double[] riferimento = bellmanFord(graph, 0);
+        long bellmanFord = System.nanoTime() - start;
+
+        for (int v = 0; v < numNodes; v++) {
+            if (Math.abs(tempo[v] - riferimento[v]) > 1e-9 * Math.max(1, riferimento[v])) {
+                throw new IllegalStateException("Con le attese a tratti Dijkstra dà " + tempo[v] + " per il nodo " + v
+                        + ", Bellman-Ford " + riferimento[v]);
+            }
+        }
+        if (!isShortestPathTree(graph, 0, tempo, percorso)) {
+            throw new IllegalStateException("Con le attese a tratti i predecessori di Dijkstra non formano un albero"
+                    + " dei cammini minimi");
         }
+        System.out.printf("attese a tratti (%d tratti con pendenza -1): dijkstra %8.2f ms, bellman-ford %8.2f ms,"
+                + " tempi uguali%n", model.steepSegments(), dijkstraBest / 1e6, bellmanFord / 1e6);
     }
 
-    static class Graph {
+    // albero dei cammini minimi da una sorgente mantenuto mentre il grafo
+    // cambia. Quando un arco o un'attesa diminuiscono, Dijkstra riparte solo
+    // dai nodi che migliorano. Quando aumentano, solo il sottoalbero che
+    // passava per l'arco o il nodo cambiato perde il suo tempo: i suoi nodi
+    // ripartono dal miglior arco entrante da un nodo non coinvolto, e Dijkstra
+    // li sistema in ordine di tempo. I tempi sono gli stessi di un ricalcolo
+    // completo; a parità di tempo il predecessore può essere un altro.
+    static class DynamicShortestPaths {
+        private final Graph graph;
+        private final int sorgente;
+        private final double[] tempo;
+        private final int[] percorso;
+
+        // archi entranti in formato CSR, con l'indice dell'arco nel grafo per
+        // leggerne il peso aggiornato
+        private final int[] inOffsets;
+        private final int[] inSources;
+        private final int[] inEdges;
 
-        private final Node[] nodes; // Array accesso in O(1)
-        private final Map<String, Double> edgeMap; // implementata con HashMap e quindi accesso in O(1)
+        private final IndexedHeap queue;
+        private final int[] affected; // nodi del sottoalbero da ricalcolare
+        private final boolean[] isAffected;
 
-        // costruisce un grafo con numNodes nodi e numEdges archi
-        Graph(int numNodes, int numEdges) {
-            this.nodes = new Node[numNodes];
-            this.edgeMap = new HashMap<String, Double>(numEdges);
+        DynamicShortestPaths(Graph graph, int sorgente) {
+            this.graph = graph;
+            this.sorgente = sorgente;
+            int n = graph.size();
+            this.tempo = new double[n];
+            this.percorso = new int[n];
+            this.queue = new IndexedHeap(n, 4);
+            this.affected = new int[n];
+            this.isAffected = new boolean[n];
 
-            for (int j = 0; j < numNodes; j++) {
-                insertNode(j);
+            inOffsets = new int[n + 1];
+            for (int e = 0; e < graph.edgeCount(); e++) {
+                inOffsets[graph.target(e) + 1]++;
             }
+            for (int i = 0; i < n; i++) {
+                inOffsets[i + 1] += inOffsets[i];
+            }
+            int[] fill = Arrays.copyOf(inOffsets, n);
+            inSources = new int[graph.edgeCount()];
+            inEdges = new int[graph.edgeCount()];
+            for (int u = 0; u < n; u++) {
+                for (int e = graph.firstEdge(u); e < graph.endEdge(u); e++) {
+                    int position = fill[graph.target(e)]++;
+                    inSources[position] = u;
+                    inEdges[position] = e;
+                }
+            }
+
+            recompute();
         }
 
-        // inserisce un nodo nel grafo
-        private void insertNode(int nodeID) {
-            this.nodes[nodeID] = new Node(nodeID);
+        // ricalcola tutto l'albero da zero
+        void recompute() {
+            dijkstra(graph, sorgente, tempo, percorso, queue);
         }
 
-        // inserisce un arco tra due nodi
-        void insertEdge(int id1, int id2, double tempo_di_percorrenza) {
-            Node nodo1 = this.nodes[id1];
-            Node nodo2 = this.nodes[id2];
+        double tempo(int node) {
+            return tempo[node];
+        }
 
-            // dato che gli id sono univoci, posso usarne la concatenazione come chiave
-            edgeMap.put(id1 + "-" + id2, tempo_di_percorrenza);
+        // predecessore del nodo nell'albero, -1 per la sorgente e per i nodi
+        // non raggiungibili
+        int predecessor(int node) {
+            return percorso[node];
+        }
 
-            // aggiungo il nodo2 alla lista di adiacenza di nodo1
-            nodo1.lista_di_adiacenza.add(nodo2);
+        // stampa tempo e percorso fino all'ultimo nodo, come camminiMinimi
+        void print() {
+            int dim = graph.size();
+            if (tempo[dim - 1] == Double.MAX_VALUE) {
+                System.out.println("Non raggiungibile");
+            } else {
+                printCamminiMinimi(dim, percorso, tempo);
+            }
         }
 
-        // stampa il grafo
-        void printGraph() { // O(n)
-            for (Node node : this.nodes) {
-                System.out.println(node);
+        // cambia il tempo di percorrenza dell'arco e ripara l'albero
+        void updateEdge(int id_nodo1, int id_nodo2, double tempo_di_percorrenza) {
+            int e = graph.firstEdge(id_nodo1);
+            while (e < graph.endEdge(id_nodo1) && graph.target(e) != id_nodo2) {
+                e++;
+            }
+            double old = e < graph.endEdge(id_nodo1) ? graph.weight(e) : tempo_di_percorrenza;
+            graph.updateEdge(id_nodo1, id_nodo2, tempo_di_percorrenza);
+
+            if (tempo_di_percorrenza < old) {
+                if (tempo[id_nodo1] != Double.MAX_VALUE) {
+                    improve(id_nodo2, id_nodo1, graph.attesa(id_nodo2, tempo[id_nodo1] + tempo_di_percorrenza));
+                    propagate();
+                }
+            } else if (tempo_di_percorrenza > old && percorso[id_nodo2] == id_nodo1) {
+                repairSubtree(id_nodo2);
             }
         }
 
-        // restituisce il tempo di attesa per il nodo i al tempo t
-        double attesa(int i, double tempo_t) {
+        // cambia l'attesa del nodo e ripara l'albero
+        void updateAttesa(int nodeID, double attesa) {
+            double old = graph.fixedAttese("L'aggiornamento di un'attesa")[nodeID];
+            graph.updateAttesa(nodeID, attesa);
+            if (nodeID == sorgente || attesa == old) {
+                return;
+            }
 
-            if (useRandom) {
-                double attesa_nodo = random.nextDouble() * 10;
-                this.nodes[i].attesa = attesa_nodo;
+            if (attesa < old) {
+                for (int i = inOffsets[nodeID]; i < inOffsets[nodeID + 1]; i++) {
+                    int u = inSources[i];
+                    if (tempo[u] != Double.MAX_VALUE) {
+                        improve(nodeID, u, graph.attesa(nodeID, tempo[u] + graph.weight(inEdges[i])));
+                    }
+                }
+                propagate();
+            } else if (tempo[nodeID] != Double.MAX_VALUE) {
+                repairSubtree(nodeID);
             }
+        }
 
-            return tempo_t + this.nodes[i].attesa;
+        private void improve(int node, int from, double t) {
+            if (t < tempo[node]) {
+                tempo[node] = t;
+                percorso[node] = from;
+                queue.push(node, t);
+            }
         }
 
-        // restituisce il tempo di percorrenza tra i nodi nodo1 e nodo2
-        double getEdge(int id_nodo1, int id_nodo2) { // accesso alla mappa O(1)
-            return edgeMap.get(id_nodo1 + "-" + id_nodo2);
+        // Dijkstra dai nodi in coda, che hanno già il tempo migliorato
+        private void propagate() {
+            while (!queue.isEmpty()) {
+                int partenza = queue.pop();
+                for (int arco = graph.firstEdge(partenza); arco < graph.endEdge(partenza); arco++) {
+                    int destinazione = graph.target(arco);
+                    improve(destinazione, partenza,
+                            graph.attesa(destinazione, tempo[partenza] + graph.weight(arco)));
+                }
+            }
         }
 
+        // il sottoalbero di root perde il tempo: ogni suo nodo riparte dal
+        // miglior arco entrante da un nodo fuori dal sottoalbero
+        private void repairSubtree(int root) {
+            int count = 0;
+            affected[count++] = root;
+            isAffected[root] = true;
+            for (int i = 0; i < count; i++) {
+                int node = affected[i];
+                for (int arco = graph.firstEdge(node); arco < graph.endEdge(node); arco++) {
+                    int child = graph.target(arco);
+                    if (percorso[child] == node && !isAffected[child]) {
+                        isAffected[child] = true;
+                        affected[count++] = child;
+                    }
+                }
+            }
+
+            for (int i = 0; i < count; i++) {
+                tempo[affected[i]] = Double.MAX_VALUE;
+                percorso[affected[i]] = -1;
+            }
+            for (int i = 0; i < count; i++) {
+                int node = affected[i];
+                for (int j = inOffsets[node]; j < inOffsets[node + 1]; j++) {
+                    int u = inSources[j];
+                    if (!isAffected[u] && tempo[u] != Double.MAX_VALUE) {
+                        improve(node, u, graph.attesa(node, tempo[u] + graph.weight(inEdges[j])));
+                    }
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                isAffected[affected[i]] = false;
+            }
+
+            propagate();
+        }
     }
 
-    // ricerca del cammino minimo
-    public static void camminiMinimi(Graph graph) {
-        int dim = graph.nodes.length;
-        Node sorgente = graph.nodes[0];
+    // applica aggiornamenti casuali ad archi e attese di un grafo casuale,
+    // ripara l'albero dopo ciascuno e lo confronta con un ricalcolo completo
+    static void benchmarkDynamic(int numNodes, int numEdges, int numUpdates, long seed) {
+        Graph graph = randomGraph(numNodes, numEdges, seed, false);
+        DynamicShortestPaths paths = new DynamicShortestPaths(graph, 0);
+        Random rnd = new Random(seed);
+        double[] riferimento = new double[numNodes];
+        int[] percorsoRiferimento = new int[numNodes];
+        NodeQueue queue = QueueType.BINARY_HEAP.create(numNodes);
 
-        int[] percorso = new int[dim];
-        double[] tempo = new double[dim];
-        boolean[] visitati = new boolean[dim];
-        PriorityQueue<Node> queue = new PriorityQueue<Node>(
-                dim,
-                (n1, n2) -> Double.compare(tempo[n1.id], tempo[n2.id]));
+        long repair = 0;
+        long full = 0;
+        for (int i = 0; i < numUpdates; i++) {
+            long start = System.nanoTime();
+            if (rnd.nextBoolean()) {
+                int from = rnd.nextInt(numNodes);
+                while (graph.firstEdge(from) == graph.endEdge(from)) {
+                    from = rnd.nextInt(numNodes);
+                }
+                int edge = graph.firstEdge(from) + rnd.nextInt(graph.endEdge(from) - graph.firstEdge(from));
+                paths.updateEdge(from, graph.target(edge), rnd.nextDouble() * 100);
+            } else {
+                paths.updateAttesa(rnd.nextInt(numNodes), rnd.nextDouble() * 10);
+            }
+            long middle = System.nanoTime();
+            dijkstra(graph, 0, riferimento, percorsoRiferimento, queue);
+            long end = System.nanoTime();
+            repair += middle - start;
+            full += end - middle;
 
-        for (int i = 1; i < dim; i++) {
-            tempo[i] = Double.MAX_VALUE;
-            visitati[i] = false;
+            for (int v = 0; v < numNodes; v++) {
+                if (paths.tempo(v) != riferimento[v]) {
+                    throw new IllegalStateException("Tempo del nodo " + v + " diverso dal ricalcolo completo");
+                }
+            }
         }
 
-        // se non esiste un percorso dalla sorgente alla destinazione
-        percorso[0] = -1;
+        System.out.printf("%d aggiornamenti: riparazione %.1f us, ricalcolo completo %.1f us in media%n",
+                numUpdates, repair / 1e3 / numUpdates, full / 1e3 / numUpdates);
+    }
+
+    // cache dei risultati delle query, con al più capacity percorsi e
+    // rimozione di quello usato meno di recente (LRU). Ogni percorso è salvato
+    // con la versione del grafo con cui è stato calcolato e non viene mai
+    // restituito dopo un aggiornamento. Le voci sono divise in segmenti con
+    // un lock ciascuno, quindi thread diversi non si bloccano a vicenda.
+    // Le sorgenti che mancano la cache almeno hotThreshold volte diventano
+    // calde: per loro si calcola e si tiene l'intero albero dei cammini
+    // minimi, da cui si risponde a qualsiasi destinazione.
+    static class RouteCache {
+        private static final int SEGMENTS = 16;
 
-        // nodo 0, istante 0
-        tempo[0] = 0;
-        visitati[0] = true;
-        queue.add(sorgente);
+        // stima della memoria occupata: voce della mappa, chiave, Route e
+        // intestazione dell'array per ogni percorso; due array per albero
+        private static final long ROUTE_BYTES = 112;
+        private static final long TREE_BYTES = 64;
 
-        while (!queue.isEmpty()) {
-            Node nodo = queue.poll();
-            int partenza = nodo.id;
+        private final Graph graph;
+        private final QueryEngine engine;
+        private final Segment[] segments = new Segment[SEGMENTS];
+        private final LinkedHashMap<Integer, CachedTree> trees;
+        private final int treeCapacity;
+        private final int hotThreshold;
+        private final AtomicIntegerArray sourceMisses;
+        private long treeHits; // protetti dal lock di trees
+        private long treeBytes;
 
-            for (Node adiacente : nodo.lista_di_adiacenza) {
+        private static class CachedRoute {
+            final long version;
+            final Route route;
 
-                int destinazione = adiacente.id;
-                double tempo_t = tempo[partenza] + graph.getEdge(partenza, destinazione);
-                double tempo_effettivo = graph.attesa(destinazione, tempo_t);
+            CachedRoute(long version, Route route) {
+                this.version = version;
+                this.route = route;
+            }
 
-                if (tempo[destinazione] > tempo_effettivo) {
-                    tempo[destinazione] = tempo_effettivo;
-                    percorso[destinazione] = partenza;
-                    if (!visitati[destinazione]) {
-                        queue.add(adiacente);
-                        visitati[destinazione] = true;
-                    }
+            long bytes() {
+                return ROUTE_BYTES + 4L * route.path.length;
+            }
+        }
+
+        private static class CachedTree {
+            final long version;
+            final double[] tempo;
+            final int[] percorso;
+
+            CachedTree(long version, double[] tempo, int[] percorso) {
+                this.version = version;
+                this.tempo = tempo;
+                this.percorso = percorso;
+            }
+
+            long bytes() {
+                return TREE_BYTES + 12L * tempo.length;
+            }
+
+            Route route(int source, int target) {
+                if (tempo[target] == Double.MAX_VALUE) {
+                    return new Route(source, target, Double.MAX_VALUE, new int[0]);
+                }
+                int length = 1;
+                for (int node = target; node != source; node = percorso[node]) {
+                    length++;
                 }
+                int[] path = new int[length];
+                for (int node = target; length > 0; node = percorso[node]) {
+                    path[--length] = node;
+                }
+                return new Route(source, target, tempo[target], path);
             }
         }
 
-        if (tempo[dim - 1] == Double.MAX_VALUE) {
-            System.out.println("Non raggiungibile");
-            return;
-        } else {
-            printCamminiMinimi(dim, percorso, tempo);
+        // un segmento è una mappa LRU con i suoi contatori, protetta dal
+        // proprio lock
+        private static class Segment extends LinkedHashMap<Long, CachedRoute> {
+            private static final long serialVersionUID = 1L;
+
+            private final int capacity;
+            long hits;
+            long misses;
+            long evictions;
+            long bytes;
+
+            Segment(int capacity) {
+                // accessOrder = true: l'iterazione parte dal percorso usato meno di recente
+                super(16, 0.75f, true);
+                this.capacity = capacity;
+            }
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedRoute> eldest) {
+                if (size() > capacity) {
+                    evictions++;
+                    bytes -= eldest.getValue().bytes();
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        RouteCache(Graph graph, int capacity, int treeCapacity, int hotThreshold) {
+            this.graph = graph;
+            this.engine = new QueryEngine(graph);
+            for (int i = 0; i < SEGMENTS; i++) {
+                segments[i] = new Segment(Math.max(1, capacity / SEGMENTS));
+            }
+            this.treeCapacity = treeCapacity;
+            this.hotThreshold = hotThreshold;
+            this.sourceMisses = new AtomicIntegerArray(graph.size());
+            this.trees = new LinkedHashMap<>(16, 0.75f, true);
+        }
+
+        // restituisce il percorso da source a target, calcolandolo solo se
+        // non è in cache per la versione corrente del grafo
+        Route query(int source, int target) {
+            long version = graph.version();
+            Long key = ((long) source << 32) | target;
+            Segment segment = segments[segment(key)];
+
+            synchronized (segment) {
+                CachedRoute cached = segment.get(key);
+                if (cached != null && cached.version == version) {
+                    segment.hits++;
+                    return cached.route;
+                }
+                if (cached != null) {
+                    segment.remove(key);
+                    segment.bytes -= cached.bytes();
+                }
+            }
+
+            Route route = null;
+            synchronized (trees) {
+                CachedTree tree = trees.get(source);
+                if (tree != null && tree.version == version) {
+                    treeHits++;
+                    route = tree.route(source, target);
+                }
+            }
+
+            if (route == null) {
+                synchronized (segment) {
+                    segment.misses++;
+                }
+                if (sourceMisses.incrementAndGet(source) >= hotThreshold && treeCapacity > 0) {
+                    // il contatore riparte, quindi una sorgente torna calda
+                    // solo se continua a mancare la cache
+                    sourceMisses.set(source, 0);
+                    route = buildTree(source, version).route(source, target);
+                } else {
+                    route = engine.query(source, target);
+                }
+            }
+
+            // un aggiornamento durante il calcolo lascia la voce con la
+            // versione vecchia, che non verrà mai restituita
+            CachedRoute entry = new CachedRoute(version, route);
+            synchronized (segment) {
+                CachedRoute previous = segment.put(key, entry);
+                segment.bytes += entry.bytes() - (previous == null ? 0 : previous.bytes());
+            }
+            return route;
+        }
+
+        // calcola e tiene l'albero dei cammini minimi di una sorgente calda
+        private CachedTree buildTree(int source, long version) {
+            int n = graph.size();
+            double[] tempo = new double[n];
+            int[] percorso = new int[n];
+            dijkstra(graph, source, tempo, percorso, new IndexedHeap(n, 4));
+            CachedTree tree = new CachedTree(version, tempo, percorso);
+
+            synchronized (trees) {
+                CachedTree previous = trees.put(source, tree);
+                treeBytes += tree.bytes() - (previous == null ? 0 : previous.bytes());
+
+                Iterator<CachedTree> eldest = trees.values().iterator();
+                while (trees.size() > treeCapacity) {
+                    treeBytes -= eldest.next().bytes();
+                    eldest.remove();
+                }
+            }
+            return tree;
+        }
+
+        private static int segment(long key) {
+            key *= 0x9E3779B97F4A7C15L;
+            return (int) (key >>> 60) & (SEGMENTS - 1);
+        }
+
+        // svuota la cache e azzera i contatori delle sorgenti
+        void clear() {
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    segment.clear();
+                    segment.bytes = 0;
+                }
+            }
+            synchronized (trees) {
+                trees.clear();
+                treeBytes = 0;
+            }
+            for (int i = 0; i < sourceMisses.length(); i++) {
+                sourceMisses.set(i, 0);
+            }
+        }
+
+        int size() {
+            int size = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    size += segment.size();
+                }
+            }
+            return size;
+        }
+
+        int trees() {
+            synchronized (trees) {
+                return trees.size();
+            }
+        }
+
+        long hits() {
+            long hits = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    hits += segment.hits;
+                }
+            }
+            return hits;
+        }
+
+        long treeHits() {
+            synchronized (trees) {
+                return treeHits;
+            }
+        }
+
+        long misses() {
+            long misses = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    misses += segment.misses;
+                }
+            }
+            return misses;
+        }
+
+        long evictions() {
+            long evictions = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    evictions += segment.evictions;
+                }
+            }
+            return evictions;
+        }
+
+        // frazione di query servite dalla cache, dai percorsi o dagli alberi
+        double hitRate() {
+            long served = hits() + treeHits();
+            long total = served + misses();
+            return total == 0 ? 0 : (double) served / total;
+        }
+
+        // stima in byte della memoria occupata da percorsi e alberi
+        long memoryBytes() {
+            long bytes;
+            synchronized (trees) {
+                bytes = treeBytes;
+            }
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    bytes += segment.bytes;
+                }
+            }
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "RouteCache [size=%d, trees=%d, hits=%d, treeHits=%d, misses=%d, evictions=%d, hitRate=%.3f, bytes=%d]",
+                    size(), trees(), hits(), treeHits(), misses(), evictions(), hitRate(), memoryBytes());
+        }
+    }
+
+    // query ripetute: quasi sempre una coppia tra 1000 frequenti, scelta con
+    // distribuzione sbilanciata, con qualche aggiornamento del grafo; ogni
+    // risposta della cache è confrontata con una query senza cache
+    static void benchmarkCache(int numNodes, int numEdges, int numQueries, long seed) {
+        Graph graph = randomGraph(numNodes, numEdges, seed, false);
+        RouteCache cache = new RouteCache(graph, 4096, 8, 32);
+        QueryEngine engine = new QueryEngine(graph);
+        Random rnd = new Random(seed);
+
+        int[] frequentSources = new int[1000];
+        int[] frequentTargets = new int[1000];
+        for (int i = 0; i < frequentSources.length; i++) {
+            frequentSources[i] = rnd.nextInt(Math.min(numNodes, 50));
+            frequentTargets[i] = rnd.nextInt(numNodes);
+        }
+
+        long cached = 0;
+        for (int i = 0; i < numQueries; i++) {
+            int source;
+            int target;
+            if (rnd.nextInt(10) > 0) {
+                int pair = (int) (frequentSources.length * Math.pow(rnd.nextDouble(), 3));
+                source = frequentSources[pair];
+                target = frequentTargets[pair];
+            } else {
+                source = rnd.nextInt(numNodes);
+                target = rnd.nextInt(numNodes);
+            }
+            if (rnd.nextInt(5000) == 0) {
+                graph.updateAttesa(rnd.nextInt(numNodes), rnd.nextDouble() * 10);
+            }
+
+            long start = System.nanoTime();
+            Route route = cache.query(source, target);
+            cached += System.nanoTime() - start;
+
+            if (route.tempo != engine.query(source, target).tempo) {
+                throw new IllegalStateException("La cache ha dato un tempo diverso per " + source + "-" + target);
+            }
+        }
+        System.out.printf("%d query in %.1f ms: %s%n", numQueries, cached / 1e6, cache);
+    }
+
+    // grafo casuale con numNodes nodi e numEdges archi, con pesi interi da 1 a
+    // 100 oppure reali tra 0 e 100; la catena 0 -> 1 -> ... garantisce che
+    // tutti i nodi siano raggiungibili
+    static Graph randomGraph(int numNodes, int numEdges, long seed, boolean integerWeights) {
+        Random rnd = new Random(seed);
+        Graph.Builder builder = new Graph.Builder(numNodes, numEdges);
+
+        for (int e = 0; e < numEdges; e++) {
+            int from = e < numNodes - 1 ? e : rnd.nextInt(numNodes);
+            int to = e < numNodes - 1 ? e + 1 : rnd.nextInt(numNodes);
+            double weight = integerWeights ? 1 + rnd.nextInt(100) : rnd.nextDouble() * 100;
+            builder.insertEdge(from, to, weight);
+        }
+        return builder.build();
+    }
+
+    // confronta i tipi di coda su grafi casuali grandi, con pesi interi e reali
+    static void benchmarkQueues(int numNodes, int numEdges, long seed) {
+        int[] percorso = new int[numNodes];
+        double[] tempo = new double[numNodes];
+
+        for (boolean integerWeights : new boolean[] { true, false }) {
+            Graph graph = randomGraph(numNodes, numEdges, seed, integerWeights);
+            double[] riferimento = null;
+
+            for (QueueType type : QueueType.values()) {
+                NodeQueue queue = type.create(numNodes);
+                long best = Long.MAX_VALUE;
+
+                // le prime esecuzioni servono a scaldare il JIT
+                for (int run = 0; run < 5; run++) {
+                    long start = System.nanoTime();
+                    dijkstra(graph, 0, tempo, percorso, queue);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+
+                if (riferimento == null) {
+                    riferimento = tempo.clone();
+                } else if (!Arrays.equals(riferimento, tempo)) {
+                    throw new IllegalStateException(type + " ha dato tempi diversi");
+                }
+
+                System.out.printf("%-16s pesi %-6s %8.2f ms%n", type, integerWeights ? "interi" : "reali",
+                        best / 1e6);
+            }
         }
     }
 
@@ -225,6 +3307,87 @@ public class Esercizio3 {
             return;
         }
 
+        // --bench <nodi> <archi> confronta le code su un grafo casuale
+        if (args[0].equals("--bench")) {
+            benchmarkQueues(Integer.parseInt(args[1]), Integer.parseInt(args[2]), 970758);
+            return;
+        }
+
+        // --query <sorgente> <destinazione> calcola un singolo percorso
+        if (args[0].equals("--query")) {
+            Graph graph = buildGraph(args[3]);
+            System.out.println(new QueryEngine(graph).query(Integer.parseInt(args[1]), Integer.parseInt(args[2])));
+            return;
+        }
+
+        // --queries <n> esegue n query casuali in parallelo
+        if (args[0].equals("--queries")) {
+            benchmarkQueries(buildGraph(args[2]), Integer.parseInt(args[1]), 970758);
+            return;
+        }
+
+        // --ch usa la gerarchia di contrazione salvata in <file>.ch; il tempo
+        // è quello di Dijkstra, ma tra percorsi con lo stesso tempo minimo
+        // la scelta può essere diversa
+        if (args[0].equals("--ch")) {
+            try {
+                ContractionHierarchy ch = ContractionHierarchy.loadOrBuild(args[1]);
+                System.out.println(ch.query(0, ch.size() - 1));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        // --delta <delta> <nodi> <archi> confronta delta-stepping e Dijkstra
+        if (args[0].equals("--delta")) {
+            benchmarkDeltaStepping(Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                    Double.parseDouble(args[1]), 970758);
+            return;
+        }
+
+        // --attesa piecewise <nodi> <archi> usa attese lineari a tratti su un
+        // grafo casuale e confronta Dijkstra con Bellman-Ford
+        if (args[0].equals("--attesa")) {
+            if (args.length < 4 || !args[1].equals("piecewise")) {
+                System.err.println("Uso: --attesa piecewise <nodi> <archi>");
+                System.exit(1);
+            }
+            benchmarkPiecewise(Integer.parseInt(args[2]), Integer.parseInt(args[3]), 970758);
+            return;
+        }
+
+        // con --snapshot il grafo viene riletto dall'istantanea binaria
+        // accanto al file di input, se è ancora valida
+        if (args[0].equals("--snapshot")) {
+            try {
+                camminiMinimi(GraphSnapshot.loadOrBuild(args[1], ForkJoinPool.getCommonPoolParallelism()));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        // --dynamic <aggiornamenti> <nodi> <archi> confronta la riparazione
+        // dell'albero con il ricalcolo completo
+        if (args[0].equals("--dynamic")) {
+            benchmarkDynamic(Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[1]),
+                    970758);
+            return;
+        }
+
+        // --cache <query> <nodi> <archi> misura la cache dei risultati
+        if (args[0].equals("--cache")) {
+            benchmarkCache(Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[1]), 970758);
+            return;
+        }
+
+        // --queue <BINARY_HEAP | QUATERNARY_HEAP | RADIX> sceglie la coda
+        if (args[0].equals("--queue")) {
+            camminiMinimi(buildGraph(args[2]), QueueType.valueOf(args[1]));
+            return;
+        }
+
         camminiMinimi(buildGraph(args[0]));
     }
 }
\ No newline at end of file
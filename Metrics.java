@@ -0,0 +1,242 @@
+/****
+ * NOME:        Samoggia Simone
+ * MATRICOLA:   0000970758
+ * EMAIL:       simone.samoggia2@studio.unibo.it
+ *
+ *
+ * Metriche comuni ai tre esercizi.
+ *
+ * I contatori di `Counter` sono LongAdder, quindi i thread dei ForkJoinPool
+ * li aggiornano senza contendersi una cella. Sono spenti di default: si
+ * accendono all'avvio con -Desercizi.metrics=true oppure a runtime con
+ * `setEnabled`. Da spenti costano la lettura di un campo volatile per ogni
+ * chiamata, e i cicli più caldi (Dijkstra, costruzione del DAG) contano in
+ * variabili locali e pubblicano il totale una sola volta alla fine.
+ * `snapshot` restituisce i valori correnti e `writeSnapshot` li scrive una
+ * riga per contatore nel formato "nome valore"; se le metriche sono accese
+ * all'avvio l'istantanea viene scritta su System.err, o sul file indicato da
+ * -Desercizi.metrics.file, alla chiusura della JVM.
+ *
+ * Gli eventi JFR `ParseEvent`, `BuildEvent` e `QueryEvent` segnano lettura
+ * dell'input, costruzione delle strutture e interrogazioni. Si registrano
+ * con JFR (-XX:StartFlightRecording o jcmd <pid> JFR.start); finché JFR non
+ * è inizializzato gli eventi non vengono nemmeno creati, e dopo non scrivono
+ * nulla se non c'è una registrazione attiva che li abilita.
+ */
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+public final class Metrics {
+    private static volatile boolean enabled = Boolean.getBoolean("esercizi.metrics");
+
+    static {
+        if (enabled) {
+            Runtime.getRuntime().addShutdownHook(new Thread(Metrics::dump, "metrics-dump"));
+        }
+    }
+
+    private Metrics() {
+    }
+
+    // contatori esportati, il nome è la chiave dell'istantanea
+    enum Counter {
+        DIJKSTRA_RELAXATIONS("dijkstra.relaxations"),
+        DIJKSTRA_HEAP_PUSHES("dijkstra.heap.pushes"),
+        // le code usano decrease-key, quindi ogni estrazione è un nodo
+        // definitivo e non serve un contatore a parte delle estrazioni
+        DIJKSTRA_SETTLED_NODES("dijkstra.settled.nodes"),
+        DECODE_MEMO_HITS("decode.memo.hits"),
+        DECODE_MEMO_MISSES("decode.memo.misses"),
+        DECODE_PREFIXES_TRIED("decode.prefixes.tried"),
+        DECODER_CACHE_HITS("decoder.cache.hits"),
+        DECODER_CACHE_MISSES("decoder.cache.misses"),
+        DECODER_CACHE_EVICTIONS("decoder.cache.evictions"),
+        TREE_NODES_BUILT("tree.nodes.built"),
+        TREE_COMPARISONS("tree.comparisons");
+
+        final String key;
+        private final LongAdder adder = new LongAdder();
+
+        Counter(String key) {
+            this.key = key;
+        }
+
+        void increment() {
+            if (enabled) {
+                adder.increment();
+            }
+        }
+
+        void add(long delta) {
+            if (enabled) {
+                adder.add(delta);
+            }
+        }
+
+        long get() {
+            return adder.sum();
+        }
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    // accende o spegne i contatori; i valori raccolti restano
+    static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    static void reset() {
+        for (Counter counter : Counter.values()) {
+            counter.adder.reset();
+        }
+    }
+
+    // valori correnti di tutti i contatori, nell'ordine di Counter
+    static Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        for (Counter counter : Counter.values()) {
+            snapshot.put(counter.key, counter.get());
+        }
+        return snapshot;
+    }
+
+    // scrive l'istantanea, una riga "nome valore" per contatore
+    static void writeSnapshot(Writer out) throws IOException {
+        for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            out.write(entry.getKey() + " " + entry.getValue() + "\n");
+        }
+        out.flush();
+    }
+
+    // scrive l'istantanea sul file di -Desercizi.metrics.file, o su System.err
+    private static void dump() {
+        String file = System.getProperty("esercizi.metrics.file");
+        try {
+            if (file == null) {
+                writeSnapshot(new PrintWriter(System.err));
+            } else {
+                try (Writer out = new FileWriter(file)) {
+                    writeSnapshot(out);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Gli eventi si creano solo se JFR è già inizializzato, da
+    // -XX:StartFlightRecording o dal primo JFR.start: il primo evento creato
+    // inizializza JFR, che costa più di 100 ms anche senza registrazioni.
+    // Senza JFR begin restituisce null e end non fa nulla.
+    static ParseEvent beginParse() {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        ParseEvent event = new ParseEvent();
+        event.begin();
+        return event;
+    }
+
+    static void end(ParseEvent event, String source, long bytes, long items) {
+        if (event != null && event.shouldCommit()) {
+            event.source = source;
+            event.bytes = bytes;
+            event.items = items;
+            event.commit();
+        }
+    }
+
+    static BuildEvent beginBuild() {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        BuildEvent event = new BuildEvent();
+        event.begin();
+        return event;
+    }
+
+    static void end(BuildEvent event, String structure, long size) {
+        if (event != null && event.shouldCommit()) {
+            event.structure = structure;
+            event.size = size;
+            event.commit();
+        }
+    }
+
+    static QueryEvent beginQuery() {
+        if (!FlightRecorder.isInitialized()) {
+            return null;
+        }
+        QueryEvent event = new QueryEvent();
+        event.begin();
+        return event;
+    }
+
+    static void end(QueryEvent event, String operation, long work) {
+        if (event != null && event.shouldCommit()) {
+            event.operation = operation;
+            event.work = work;
+            event.commit();
+        }
+    }
+
+    // lettura e interpretazione di un file di input
+    @Name("esercizi.Parse")
+    @Label("Parse")
+    @Category("Esercizi")
+    @Description("Lettura e interpretazione di un file di input")
+    static final class ParseEvent extends Event {
+        @Label("Source")
+        String source;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Items")
+        long items;
+    }
+
+    // costruzione di una struttura a partire da dati già letti
+    @Name("esercizi.Build")
+    @Label("Build")
+    @Category("Esercizi")
+    @Description("Costruzione di una struttura dati")
+    static final class BuildEvent extends Event {
+        @Label("Structure")
+        String structure;
+
+        @Label("Size")
+        long size;
+    }
+
+    // interrogazione di una struttura già costruita; work è il lavoro svolto,
+    // per esempio i nodi estratti da Dijkstra
+    @Name("esercizi.Query")
+    @Label("Query")
+    @Category("Esercizi")
+    @Description("Interrogazione di una struttura dati")
+    static final class QueryEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Work")
+        long work;
+    }
+}
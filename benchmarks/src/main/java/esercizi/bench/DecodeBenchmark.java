@@ -0,0 +1,51 @@
+package esercizi.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// decodifica di Esercizio2 su stringhe ambigue: il numero di decodifiche
+// cresce in modo esponenziale con la lunghezza, e il benchmark le scorre
+// tutte, come fa la stampa
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+    @Param({ "16", "24", "32" })
+    public int length;
+
+    @Param({ "970758" })
+    public long seed;
+
+    private String bits;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        bits = Generators.ambiguousBits(length, seed);
+    }
+
+    @Benchmark
+    public void decodeUsingDP(Blackhole bh) throws Throwable {
+        List<String> sequences = Esercizi.decodeUsingDP(bits);
+        for (String sequence : sequences) {
+            bh.consume(sequence);
+        }
+    }
+}
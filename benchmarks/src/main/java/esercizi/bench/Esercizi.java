@@ -0,0 +1,94 @@
+package esercizi.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+
+// accesso ai metodi degli esercizi. Esercizio1-3 sono nel package di default,
+// che non si può importare da un package con nome, e JMH richiede che i
+// benchmark ne abbiano uno: i metodi si cercano quindi per nome una volta
+// sola, e i MethodHandle static final vengono compilati dal JIT come
+// chiamate dirette. I tipi annidati degli esercizi (TreeNode, Graph) sono
+// visti come Object.
+final class Esercizi {
+
+    private static final MethodHandle BUILD_TREE_FROM_PAIRS = find("Esercizio1", "buildTreeFromPairs",
+            "Esercizio1$TreeNode", String.class);
+    private static final MethodHandle BUILD_TREE_FROM_NESTED_LIST = find("Esercizio1", "buildTreeFromNestedList",
+            "Esercizio1$TreeNode", String.class);
+    private static final MethodHandle ARE_TREES_EQUAL = find("Esercizio1", "areTreesEqual", boolean.class,
+            type("Esercizio1$TreeNode"), type("Esercizio1$TreeNode"));
+    private static final MethodHandle DECODE_USING_DP = find("Esercizio2", "decodeUsingDP", List.class,
+            String.class);
+    private static final MethodHandle BUILD_GRAPH = find("Esercizio3", "buildGraph", "Esercizio3$Graph",
+            String.class);
+    private static final MethodHandle CAMMINI_MINIMI = find("Esercizio3", "camminiMinimi", void.class,
+            type("Esercizio3$Graph"));
+
+    private Esercizi() {
+    }
+
+    static Object buildTreeFromPairs(String filename) throws Throwable {
+        return (Object) BUILD_TREE_FROM_PAIRS.invokeExact(filename);
+    }
+
+    static Object buildTreeFromNestedList(String filename) throws Throwable {
+        return (Object) BUILD_TREE_FROM_NESTED_LIST.invokeExact(filename);
+    }
+
+    static boolean areTreesEqual(Object root1, Object root2) throws Throwable {
+        return (boolean) ARE_TREES_EQUAL.invokeExact(root1, root2);
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<String> decodeUsingDP(String binaryInput) throws Throwable {
+        return (List<String>) DECODE_USING_DP.invokeExact(binaryInput);
+    }
+
+    static Object buildGraph(String filename) throws Throwable {
+        return (Object) BUILD_GRAPH.invokeExact(filename);
+    }
+
+    static void camminiMinimi(Object graph) throws Throwable {
+        CAMMINI_MINIMI.invokeExact(graph);
+    }
+
+    private static MethodHandle find(String className, String name, String returnType, Class<?>... parameters) {
+        return find(className, name, type(returnType), parameters);
+    }
+
+    // cerca il metodo statico, anche se privato, e ne adatta il tipo
+    // sostituendo i tipi degli esercizi con Object
+    private static MethodHandle find(String className, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            Class<?> owner = type(className);
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(owner, MethodHandles.lookup());
+            MethodHandle handle = lookup.findStatic(owner, name, MethodType.methodType(returnType, parameters));
+            MethodType type = handle.type();
+            for (int i = 0; i < type.parameterCount(); i++) {
+                if (isExercise(type.parameterType(i))) {
+                    type = type.changeParameterType(i, Object.class);
+                }
+            }
+            if (isExercise(type.returnType())) {
+                type = type.changeReturnType(Object.class);
+            }
+            return handle.asType(type);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static boolean isExercise(Class<?> type) {
+        return type.getName().startsWith("Esercizio");
+    }
+
+    private static Class<?> type(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new NoClassDefFoundError(className);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package esercizi.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+// generatori con seed degli input dei benchmark: alberi nei due formati di
+// Esercizio1, stringhe di bit ambigue per Esercizio2 e grafi per Esercizio3.
+// A parità di parametri e seed l'input è sempre lo stesso, quindi i
+// risultati di esecuzioni diverse sono confrontabili.
+public final class Generators {
+
+    // forma degli alberi generati
+    public enum Shape {
+        // ogni nodo è figlio di uno dei primi 10: pochi nodi con moltissimi figli
+        WIDE,
+        // ogni nodo è figlio di uno degli ultimi 3: profondità circa n / 2
+        DEEP,
+        // albero binario completo: profondità log n
+        BALANCED
+    }
+
+    // codici della tabella di Esercizio2; "0", "00" e i loro prolungamenti
+    // rendono ambigue le stringhe con molti zeri
+    private static final String[] CODES = { "0", "00", "001", "010", "0010", "0100", "0110", "0001" };
+
+    private Generators() {
+    }
+
+    // padre di ogni nodo di un albero con n nodi; il nodo 0 è la radice
+    static int[] parents(Shape shape, int n, long seed) {
+        Random rnd = new Random(seed);
+        int[] parent = new int[n];
+        parent[0] = -1;
+        for (int i = 1; i < n; i++) {
+            switch (shape) {
+                case WIDE:
+                    parent[i] = rnd.nextInt(Math.min(i, 10));
+                    break;
+                case DEEP:
+                    parent[i] = Math.max(0, i - 1 - rnd.nextInt(3));
+                    break;
+                default:
+                    parent[i] = (i - 1) / 2;
+                    break;
+            }
+        }
+        return parent;
+    }
+
+    // valori distinti dei nodi, in ordine casuale
+    static int[] values(int n, long seed) {
+        Random rnd = new Random(seed ^ 0x5DEECE66DL);
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = i + 1;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            int swap = values[i];
+            values[i] = values[j];
+            values[j] = swap;
+        }
+        return values;
+    }
+
+    // scrive le coppie "padre, figlio" in ordine casuale
+    static void writePairs(Path file, int[] parent, int[] values, long seed) throws IOException {
+        int[] order = values(parent.length - 1, seed);
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int k : order) {
+                out.write(values[parent[k]] + ", " + values[k]);
+                out.newLine();
+            }
+        }
+    }
+
+    // scrive la lista annidata "[v, [figlio], ...]" su una riga, con una
+    // visita iterativa perché gli alberi profondi farebbero traboccare lo stack
+    static void writeNestedList(Path file, int[] parent, int[] values) throws IOException {
+        int n = parent.length;
+        int[] firstChild = new int[n + 1];
+        for (int i = 1; i < n; i++) {
+            firstChild[parent[i] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            firstChild[i + 1] += firstChild[i];
+        }
+        int[] fill = firstChild.clone();
+        int[] children = new int[Math.max(n - 1, 0)];
+        for (int i = 1; i < n; i++) {
+            children[fill[parent[i]]++] = i;
+        }
+
+        StringBuilder sb = new StringBuilder(8 * n);
+        int[] stack = new int[n];
+        int[] next = new int[n]; // prossimo figlio da visitare
+        int top = 0;
+        stack[top++] = 0;
+        next[0] = firstChild[0];
+        sb.append('[').append(values[0]);
+        while (top > 0) {
+            int node = stack[top - 1];
+            if (next[node] < firstChild[node + 1]) {
+                int child = children[next[node]++];
+                sb.append(", [").append(values[child]);
+                next[child] = firstChild[child];
+                stack[top++] = child;
+            } else {
+                sb.append(']');
+                top--;
+            }
+        }
+        Files.write(file, sb.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // stringa di bit di almeno length caratteri ottenuta concatenando codici
+    // a caso, metà delle volte "0": è sempre decodificabile e ha molte
+    // decodifiche diverse
+    static String ambiguousBits(int length, long seed) {
+        Random rnd = new Random(seed);
+        StringBuilder sb = new StringBuilder(length + 4);
+        while (sb.length() < length) {
+            sb.append(rnd.nextBoolean() ? CODES[0] : CODES[rnd.nextInt(CODES.length)]);
+        }
+        return sb.toString();
+    }
+
+    // grafo nel formato di grafo.txt: la catena 0 -> 1 -> ... -> n - 1 rende
+    // raggiungibili tutti i nodi, gli altri archi sono casuali, con tempi di
+    // percorrenza tra 0 e 100 con due decimali
+    static void writeGraph(Path file, int numNodes, int numEdges, long seed) throws IOException {
+        Random rnd = new Random(seed);
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write(Integer.toString(numNodes));
+            out.newLine();
+            out.write(Integer.toString(numEdges));
+            out.newLine();
+            for (int e = 0; e < numEdges; e++) {
+                int from = e < numNodes - 1 ? e : rnd.nextInt(numNodes);
+                int to = e < numNodes - 1 ? e + 1 : rnd.nextInt(numNodes);
+                out.write(from + " " + to + " " + rnd.nextInt(10000) / 100.0);
+                out.newLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package esercizi.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// caricamento del grafo e cammini minimi di Esercizio3 su grafi sparsi
+// (3 archi per nodo) e densi (50 archi per nodo). camminiMinimi stampa il
+// risultato, quindi durante il benchmark System.out viene scartato.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphBenchmark {
+
+    public enum Density {
+        SPARSE(3), DENSE(50);
+
+        final int edgesPerNode;
+
+        Density(int edgesPerNode) {
+            this.edgesPerNode = edgesPerNode;
+        }
+    }
+
+    @Param({ "SPARSE", "DENSE" })
+    public Density density;
+
+    @Param({ "1000", "100000" })
+    public int nodes;
+
+    @Param({ "970758" })
+    public long seed;
+
+    private Path file;
+    private Object graph;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        file = Files.createTempFile("grafo", ".txt");
+        Generators.writeGraph(file, nodes, nodes * density.edgesPerNode, seed);
+        graph = Esercizi.buildGraph(file.toString());
+
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.setOut(stdout);
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public Object buildGraph() throws Throwable {
+        return Esercizi.buildGraph(file.toString());
+    }
+
+    @Benchmark
+    public void camminiMinimi() throws Throwable {
+        Esercizi.camminiMinimi(graph);
+    }
+}
@@ -0,0 +1,89 @@
+package esercizi.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// costruzione e confronto degli alberi di Esercizio1; lo stack è più grande
+// del normale perché areTreesEqual è ricorsivo e gli alberi DEEP sono
+// profondi migliaia di nodi
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss64m")
+public class TreeBenchmark {
+
+    @Param({ "WIDE", "DEEP", "BALANCED" })
+    public Generators.Shape shape;
+
+    @Param({ "1000", "100000" })
+    public int nodes;
+
+    @Param({ "970758" })
+    public long seed;
+
+    private Path directory;
+    private String pairs;
+    private String nestedList;
+    private Object tree1;
+    private Object tree2;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        directory = Files.createTempDirectory("tree-bench");
+        int[] parent = Generators.parents(shape, nodes, seed);
+        int[] values = Generators.values(nodes, seed);
+
+        Path pairsFile = directory.resolve("parent_child_pairs.txt");
+        Path nestedFile = directory.resolve("nested_list.txt");
+        Generators.writePairs(pairsFile, parent, values, seed);
+        Generators.writeNestedList(nestedFile, parent, values);
+        pairs = pairsFile.toString();
+        nestedList = nestedFile.toString();
+
+        tree1 = Esercizi.buildTreeFromPairs(pairs);
+        tree2 = Esercizi.buildTreeFromNestedList(nestedList);
+        if (!Esercizi.areTreesEqual(tree1, tree2)) {
+            throw new IllegalStateException("I due formati dovrebbero dare lo stesso albero");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(Path.of(pairs));
+        Files.deleteIfExists(Path.of(nestedList));
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public Object buildTreeFromPairs() throws Throwable {
+        return Esercizi.buildTreeFromPairs(pairs);
+    }
+
+    @Benchmark
+    public Object buildTreeFromNestedList() throws Throwable {
+        return Esercizi.buildTreeFromNestedList(nestedList);
+    }
+
+    @Benchmark
+    public boolean areTreesEqual() throws Throwable {
+        return Esercizi.areTreesEqual(tree1, tree2);
+    }
+}